@@ -0,0 +1,144 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ParserPlugin;
+import org.embulk.spi.Schema;
+import org.embulk.spi.util.InputStreamFileInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs Xml2ParserPlugin end to end, from the input bytes to the pages, for each parser engine.
+ * The input of the same size is given as one file, or as many small files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParserBenchmark
+{
+    @Param({"mediawiki", "wide", "deep"})
+    public String shape;
+
+    @Param({"sax", "stax", "aalto_async"})
+    public String engine;
+
+    @Param({"4"})
+    public int columns;
+
+    @Param({"8"})
+    public int depth;
+
+    @Param({"256"})
+    public int textSize;
+
+    @Param({"16777216"})
+    public long size;
+
+    // the input is split into this number of files of the same content.
+    @Param({"1", "1024"})
+    public int files;
+
+    private EmbulkTestRuntime runtime;
+    private Xml2ParserPlugin plugin;
+    private TaskSource taskSource;
+    private Schema schema;
+    private byte[] data;
+    private int records;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        runtime = new EmbulkTestRuntime();
+        final XmlGenerator generator = new XmlGenerator(XmlGenerator.Shape.of(shape), columns, depth, textSize, 0);
+        data = generator.generate(size / files);
+        records = generator.getRecords() * files;
+        plugin = new Xml2ParserPlugin();
+        Exec.doWith(runtime.getExec(), new ExecAction<Void>() {
+            @Override
+            public Void run()
+            {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("root", generator.getRoot())
+                        .set("schema", generator.getSchema())
+                        .set("parser_engine", engine)
+                        .set("progress_log_interval", 0);
+                plugin.transaction(config, new ParserPlugin.Control() {
+                    @Override
+                    public void run(TaskSource taskSource, Schema schema)
+                    {
+                        ParserBenchmark.this.taskSource = taskSource;
+                        ParserBenchmark.this.schema = schema;
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public void run(Counters counters) throws Exception
+    {
+        Exec.doWith(runtime.getExec(), new ExecAction<Void>() {
+            @Override
+            public Void run()
+            {
+                List<InputStream> streams = new ArrayList<InputStream>(files);
+                for (int i = 0; i < files; i++) {
+                    streams.add(new ByteArrayInputStream(data));
+                }
+                plugin.run(taskSource, schema,
+                        new InputStreamFileInput(runtime.getBufferAllocator(), new InputStreamFileInput.IteratorProvider(streams)),
+                        new DiscardingPageOutput());
+                return null;
+            }
+        });
+        counters.bytes += (long) data.length * files;
+        counters.records += records;
+    }
+}
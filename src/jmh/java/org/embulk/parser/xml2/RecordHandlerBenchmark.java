@@ -0,0 +1,189 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.parser.xml2.Xml2ParserPlugin.ColumnOption;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+import org.embulk.spi.util.Timestamps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Replays SAX events recorded in advance to RecordHandler, so the element matching and
+ * the value conversion are measured without tokenizing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecordHandlerBenchmark
+{
+    @Param({"mediawiki", "wide", "deep"})
+    public String shape;
+
+    @Param({"1", "4", "16"})
+    public int columns;
+
+    @Param({"8"})
+    public int depth;
+
+    @Param({"256"})
+    public int textSize;
+
+    @Param({"4194304"})
+    public long size;
+
+    private EmbulkTestRuntime runtime;
+    private List<Event> events;
+    private PageBuilder pageBuilder;
+    private RecordHandler handler;
+    private long bytes;
+    private int records;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        runtime = new EmbulkTestRuntime();
+        final XmlGenerator generator = new XmlGenerator(XmlGenerator.Shape.of(shape), columns, depth, textSize, 0);
+        byte[] data = generator.generate(size);
+        bytes = data.length;
+        records = generator.getRecords();
+        EventRecorder recorder = new EventRecorder();
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(data), recorder);
+        events = recorder.events;
+
+        Exec.doWith(runtime.getExec(), new ExecAction<Void>() {
+            @Override
+            public Void run()
+            {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("root", generator.getRoot())
+                        .set("schema", generator.getSchema());
+                PluginTask task = config.loadConfig(PluginTask.class);
+                Schema schema = task.getSchema().toSchema();
+                ColumnOption[] columnOptions = Xml2ParserPlugin.newColumnOptions(task);
+                pageBuilder = new PageBuilder(runtime.getBufferAllocator(), schema, new DiscardingPageOutput());
+                handler = new RecordHandler(task, PathTrie.compile(task, schema, columnOptions), schema,
+                        Timestamps.newTimestampColumnParsers(task, task.getSchema()), columnOptions, pageBuilder,
+                        new ParserMetrics(schema, 0), new SkippedRecordCounter(task.getMaxSkippedRecords()));
+                return null;
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pageBuilder.close();
+    }
+
+    @Benchmark
+    public void replay(Counters counters) throws Exception
+    {
+        handler.startDocument();
+        for (Event event : events) {
+            if (event.text != null) {
+                handler.characters(event.text, 0, event.text.length);
+            }
+            else if (event.attributes != null) {
+                handler.startElement("", event.qName, event.qName, event.attributes);
+            }
+            else {
+                handler.endElement("", event.qName, event.qName);
+            }
+        }
+        handler.endDocument();
+        counters.bytes += bytes;
+        counters.records += records;
+    }
+
+    private static class Event
+    {
+        private final String qName;
+        private final Attributes attributes;
+        private final char[] text;
+
+        Event(String qName, Attributes attributes, char[] text)
+        {
+            this.qName = qName;
+            this.attributes = attributes;
+            this.text = text;
+        }
+    }
+
+    private static class EventRecorder
+            extends DefaultHandler
+    {
+        private final List<Event> events = new ArrayList<Event>();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            events.add(new Event(qName, new AttributesImpl(attributes), null));
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+        {
+            events.add(new Event(qName, null, null));
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+        {
+            char[] text = new char[length];
+            System.arraycopy(ch, start, text, 0, length);
+            events.add(new Event(null, null, text));
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Generates synthetic XML for the benchmarks. The output depends only on the arguments,
+ * so the same input is parsed on every run.
+ *
+ * <ul>
+ * <li>mediawiki: pages of the MediaWiki export format. columns are picked from the page and revision fields.</li>
+ * <li>wide: records of 64 flat fields. the first {@code columns} fields are mapped.</li>
+ * <li>deep: records of {@code depth} nested levels, each level has a value. the deepest {@code columns} values are mapped.</li>
+ * </ul>
+ */
+final class XmlGenerator
+{
+    enum Shape
+    {
+        MEDIAWIKI, WIDE, DEEP;
+
+        static Shape of(String name)
+        {
+            return valueOf(name.toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    static final int WIDE_FIELDS = 64;
+
+    private static final String[][] MEDIAWIKI_COLUMNS = {
+        {"id", "long"},
+        {"title", "string"},
+        {"revision/timestamp", "timestamp"},
+        {"revision/text", "string"},
+        {"ns", "long"},
+        {"revision/id", "long"},
+        {"revision/contributor/username", "string"},
+        {"revision/contributor/id", "long"},
+        {"revision/comment", "string"},
+        {"revision/sha1", "string"},
+    };
+
+    private static final String[] WORDS = {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit",
+        "sed", "do", "eiusmod", "tempor", "&amp;", "&lt;ref&gt;", "日本語", "テキスト",
+    };
+
+    private final Shape shape;
+    private final int columns;
+    private final int depth;
+    private final int textSize;
+    private final Random random;
+    private int records;
+
+    XmlGenerator(Shape shape, int columns, int depth, int textSize, long seed)
+    {
+        this.shape = shape;
+        this.columns = columns;
+        this.depth = depth;
+        this.textSize = textSize;
+        this.random = new Random(seed);
+    }
+
+    public String getRoot()
+    {
+        switch (shape) {
+        case MEDIAWIKI:
+            return "mediawiki/page";
+        case WIDE:
+            return "records/record";
+        default:
+            return "records/l1";
+        }
+    }
+
+    /**
+     * @return schema config of the mapped columns.
+     */
+    public List<Map<String, Object>> getSchema()
+    {
+        List<Map<String, Object>> schema = new ArrayList<Map<String, Object>>();
+        switch (shape) {
+        case MEDIAWIKI:
+            for (int i = 0; i < Math.min(columns, MEDIAWIKI_COLUMNS.length); i++) {
+                schema.add(column(MEDIAWIKI_COLUMNS[i][0], MEDIAWIKI_COLUMNS[i][1]));
+            }
+            break;
+        case WIDE:
+            for (int i = 0; i < Math.min(columns, WIDE_FIELDS); i++) {
+                schema.add(column("f" + i, wideFieldType(i)));
+            }
+            break;
+        default:
+            for (int level = Math.max(1, depth - columns + 1); level <= depth; level++) {
+                StringBuilder path = new StringBuilder();
+                for (int i = 2; i <= level; i++) {
+                    path.append('l').append(i).append('/');
+                }
+                schema.add(column(path.append('v').append(level).toString(), "string"));
+            }
+            break;
+        }
+        return schema;
+    }
+
+    private static Map<String, Object> column(String name, String type)
+    {
+        if (type.equals("timestamp")) {
+            return ImmutableMap.<String, Object>of("name", name, "type", type, "format", "%Y-%m-%dT%H:%M:%SZ");
+        }
+        return ImmutableMap.<String, Object>of("name", name, "type", type);
+    }
+
+    private static String wideFieldType(int i)
+    {
+        switch (i % 4) {
+        case 0:
+            return "long";
+        case 1:
+            return "double";
+        default:
+            return "string";
+        }
+    }
+
+    /**
+     * @return number of records generated by the last generate call.
+     */
+    public int getRecords()
+    {
+        return records;
+    }
+
+    public byte[] generate(long size) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, size + 65536));
+        generate(out, size);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes records until at least {@code size} characters are written.
+     */
+    public void generate(OutputStream out, long size) throws IOException
+    {
+        CountingWriter writer = new CountingWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        records = 0;
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (shape == Shape.MEDIAWIKI) {
+            writer.write("<mediawiki xmlns=\"http://www.mediawiki.org/xml/export-0.10/\" version=\"0.10\" xml:lang=\"en\">\n");
+            writer.write("  <siteinfo>\n    <sitename>Wikipedia</sitename>\n    <namespaces>\n");
+            for (int i = 0; i < 16; i++) {
+                writer.write("      <namespace key=\"" + i + "\" case=\"first-letter\">Namespace " + i + "</namespace>\n");
+            }
+            writer.write("    </namespaces>\n  </siteinfo>\n");
+        }
+        else {
+            writer.write("<records>\n");
+        }
+        while (writer.count < size) {
+            switch (shape) {
+            case MEDIAWIKI:
+                writePage(writer);
+                break;
+            case WIDE:
+                writeWide(writer);
+                break;
+            default:
+                writeDeep(writer);
+                break;
+            }
+            records++;
+        }
+        writer.write(shape == Shape.MEDIAWIKI ? "</mediawiki>\n" : "</records>\n");
+        writer.flush();
+    }
+
+    private void writePage(Writer writer) throws IOException
+    {
+        int id = records + 1;
+        writer.write("  <page>\n");
+        writer.write("    <title>Page " + id + "</title>\n");
+        writer.write("    <ns>" + (id % 16) + "</ns>\n");
+        writer.write("    <id>" + id + "</id>\n");
+        writer.write("    <revision>\n");
+        writer.write("      <id>" + (1000000 + id) + "</id>\n");
+        writer.write("      <parentid>" + (999999 + id) + "</parentid>\n");
+        writer.write(String.format("      <timestamp>20%02d-%02d-%02dT%02d:%02d:%02dZ</timestamp>\n",
+                random.nextInt(16), random.nextInt(12) + 1, random.nextInt(28) + 1,
+                random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+        writer.write("      <contributor>\n");
+        writer.write("        <username>User" + random.nextInt(10000) + "</username>\n");
+        writer.write("        <id>" + random.nextInt(1000000) + "</id>\n");
+        writer.write("      </contributor>\n");
+        writer.write("      <comment>" + text(32) + "</comment>\n");
+        writer.write("      <model>wikitext</model>\n");
+        writer.write("      <format>text/x-wiki</format>\n");
+        writer.write("      <text xml:space=\"preserve\" bytes=\"" + textSize + "\">" + text(textSize) + "</text>\n");
+        writer.write("      <sha1>" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "</sha1>\n");
+        writer.write("    </revision>\n");
+        writer.write("  </page>\n");
+    }
+
+    private void writeWide(Writer writer) throws IOException
+    {
+        writer.write("  <record>");
+        for (int i = 0; i < WIDE_FIELDS; i++) {
+            writer.write("<f" + i + ">");
+            switch (i % 4) {
+            case 0:
+                writer.write(Long.toString(random.nextInt()));
+                break;
+            case 1:
+                writer.write(Double.toString(random.nextInt(1000000) / 100.0));
+                break;
+            default:
+                writer.write(text(textSize));
+                break;
+            }
+            writer.write("</f" + i + ">");
+        }
+        writer.write("</record>\n");
+    }
+
+    private void writeDeep(Writer writer) throws IOException
+    {
+        for (int level = 1; level <= depth; level++) {
+            writer.write("<l" + level + " level=\"" + level + "\"><v" + level + ">" + text(textSize) + "</v" + level + ">");
+        }
+        for (int level = depth; level >= 1; level--) {
+            writer.write("</l" + level + ">");
+        }
+        writer.write('\n');
+    }
+
+    private String text(int length)
+    {
+        StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            if (sb.length() > 0) {
+                sb.append(random.nextInt(16) == 0 ? '\n' : ' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static class CountingWriter
+            extends Writer
+    {
+        private final Writer writer;
+        private long count;
+
+        CountingWriter(Writer writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            writer.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str) throws IOException
+        {
+            writer.write(str);
+            count += str.length();
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a file to parse outside the benchmarks, e.g. a file larger than the heap.
+     * usage: XmlGenerator shape size file [columns depth textSize seed]
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3) {
+            System.err.println("usage: XmlGenerator mediawiki|wide|deep size file [columns depth textSize seed]");
+            System.exit(1);
+        }
+        XmlGenerator generator = new XmlGenerator(Shape.of(args[0]),
+                args.length > 3 ? Integer.parseInt(args[3]) : 4,
+                args.length > 4 ? Integer.parseInt(args[4]) : 8,
+                args.length > 5 ? Integer.parseInt(args[5]) : 256,
+                args.length > 6 ? Long.parseLong(args[6]) : 0);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[2]))) {
+            generator.generate(out, Long.parseLong(args[1]));
+        }
+        System.err.println(String.format("%d records. root: %s, schema: %s", generator.getRecords(), generator.getRoot(), generator.getSchema()));
+    }
+}
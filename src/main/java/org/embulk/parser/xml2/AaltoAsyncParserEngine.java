@@ -0,0 +1,114 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.IOException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileInput;
+import org.xml.sax.SAXException;
+
+import com.fasterxml.aalto.AsyncByteArrayFeeder;
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+
+/**
+ * Non-blocking Aalto parser fed with the Buffers of the FileInput as they are,
+ * without copying them through an InputStream.
+ */
+class AaltoAsyncParserEngine
+        extends ParserEngine
+{
+    private final AsyncXMLInputFactory factory;
+
+    AaltoAsyncParserEngine(PluginTask task)
+    {
+        factory = new InputFactoryImpl();
+        // the input buffers are fed as they are, so input_buffer_size does not apply.
+        StaxParserEngine.configure(factory, task, Exec.getLogger(AaltoAsyncParserEngine.class));
+    }
+
+    @Override
+    public void parse(FileInput input, RecordHandler handler) throws IOException, SAXException
+    {
+        while (input.nextFile()) {
+            AsyncXMLStreamReader<AsyncByteArrayFeeder> reader = factory.createAsyncForByteArray();
+            AsyncByteArrayFeeder feeder = reader.getInputFeeder();
+            StaxEventDispatcher dispatcher = new StaxEventDispatcher(reader, handler);
+            // the feeder refers the array of this buffer until it needs more input.
+            Buffer fed = null;
+            boolean endOfInput = false;
+            try {
+                handler.startDocument();
+                int event;
+                while ((event = reader.next()) != XMLStreamConstants.END_DOCUMENT) {
+                    if (event == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+                        if (endOfInput) {
+                            throw new SAXException("Unexpected end of XML document");
+                        }
+                        if (fed != null) {
+                            fed.release();
+                        }
+                        fed = input.poll();
+                        while (fed != null && fed.limit() == 0) {
+                            fed.release();
+                            fed = input.poll();
+                        }
+                        if (fed == null) {
+                            feeder.endOfInput();
+                            endOfInput = true;
+                        }
+                        else {
+                            feeder.feedInput(fed.array(), fed.offset(), fed.limit());
+                        }
+                        continue;
+                    }
+                    dispatcher.dispatch(event);
+                }
+                handler.endDocument();
+            }
+            catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+            finally {
+                if (fed != null) {
+                    fed.release();
+                }
+                StaxParserEngine.closeQuietly(reader);
+            }
+            // drains the rest of the file, e.g. trailing white spaces.
+            Buffer rest;
+            while ((rest = input.poll()) != null) {
+                rest.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+/**
+ * Parses values directly from a char[] range, so no String is created for numeric columns.
+ * The values accepted and the results are the same as Long.parseLong, Double.parseDouble and
+ * Boolean.parseBoolean of the text. Inputs other than the common ones are passed to them as a String.
+ */
+final class CharParsers
+{
+    // 10^0 .. 10^22 are exactly representable as double.
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    // mantissa which is exactly representable as double.
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private CharParsers()
+    {
+    }
+
+    public static long parseLong(char[] buf, int offset, int length)
+    {
+        int end = offset + length;
+        boolean negative = false;
+        int i = offset;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return Long.parseLong(new String(buf, offset, length));
+        }
+
+        // accumulates negatively to handle Long.MIN_VALUE, like Long.parseLong does.
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || result < multmin || result * 10 < limit + digit) {
+                // non-ASCII digits, which Long.parseLong accepts, or an error reported by it.
+                return Long.parseLong(new String(buf, offset, length));
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    public static double parseDouble(char[] buf, int offset, int length)
+    {
+        // trims like Double.parseDouble does.
+        int start = offset;
+        int end = offset + length;
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+
+        // fast path for plain decimals like "-123.456". the result is correctly rounded
+        // because both the mantissa and the power of ten are exact doubles.
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (++digits > 15 || fractionDigits >= 0 && ++fractionDigits >= POWERS_OF_TEN.length) {
+                    break;
+                }
+            }
+            else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            }
+            else {
+                break;
+            }
+        }
+        if (i == end && digits > 0 && mantissa < MAX_EXACT_MANTISSA) {
+            double value = mantissa;
+            if (fractionDigits > 0) {
+                value /= POWERS_OF_TEN[fractionDigits];
+            }
+            return negative ? -value : value;
+        }
+
+        // exponents, NaN, Infinity, long mantissas and errors.
+        return Double.parseDouble(new String(buf, start, end - start));
+    }
+
+    /**
+     * @return true if the text is "true" ignoring case, like Boolean.parseBoolean.
+     */
+    public static boolean parseBoolean(char[] buf, int offset, int length)
+    {
+        return length == 4
+                && equalsIgnoreCase(buf[offset], 't')
+                && equalsIgnoreCase(buf[offset + 1], 'r')
+                && equalsIgnoreCase(buf[offset + 2], 'u')
+                && equalsIgnoreCase(buf[offset + 3], 'e');
+    }
+
+    /**
+     * Compares characters in the same way as String.equalsIgnoreCase.
+     */
+    private static boolean equalsIgnoreCase(char c, char lowerCase)
+    {
+        if (c == lowerCase) {
+            return true;
+        }
+        char upperCase = Character.toUpperCase(c);
+        return upperCase == Character.toUpperCase(lowerCase) || Character.toLowerCase(upperCase) == lowerCase;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import org.slf4j.Logger;
+
+/**
+ * Index of a file in the task and the byte offset next to the last root element parsed in it,
+ * which can be set to resume_from_file and resume_from to resume after it. ParserPlugin can not
+ * return a task report or a config diff in this version of Embulk, so the checkpoint is logged.
+ * ParserPlugin does not know the index of the task either, so the file is also identified by
+ * the checksum of its head.
+ * The records parsed are not always in the output: pages are flushed when they are full, and
+ * the output of a failed task may be rolled back.
+ */
+class Checkpoint
+{
+    private int file;
+    private int headLength = 0;
+    private long headChecksum;
+    private long offset;
+    private long records = 0;
+
+    Checkpoint(int resumeFile, long resumeFrom)
+    {
+        this.file = resumeFile;
+        this.offset = resumeFrom;
+    }
+
+    /**
+     * @param file index of the file in the task.
+     * @param headLength number of bytes at the head of the file read so far.
+     * @param headChecksum CRC32 of the bytes at the head of the file.
+     * @param offset byte offset next to the last root element parsed.
+     * @param records number of root elements parsed up to the offset.
+     */
+    public synchronized void update(int file, int headLength, long headChecksum, long offset, int records)
+    {
+        if (file != this.file) {
+            this.file = file;
+            this.records = 0;
+        }
+        this.headLength = headLength;
+        this.headChecksum = headChecksum;
+        this.offset = offset;
+        this.records += records;
+    }
+
+    public synchronized void log(Logger logger, boolean completed)
+    {
+        String head = headLength > 0 ? String.format(" (CRC32 of the first %d bytes: %08x)", headLength, headChecksum) : "";
+        String message = String.format("Checkpoint: %,d records of the file #%d%s of this task are parsed up to byte %d",
+                records, file, head, offset);
+        if (completed) {
+            logger.info(message);
+        }
+        else {
+            logger.warn(message + String.format(". They may not be in the output, since pages are flushed when they are full"
+                    + " and the output of a failed task is rolled back unless the output plugin keeps it."
+                    + " If the output has all records parsed so far, set resume_from_file: %d and resume_from: %d"
+                    + " to resume from there. They apply to every task, so set them only if the job has this task alone",
+                    file, offset));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.embulk.spi.FileInput;
+import org.embulk.spi.util.FileInputInputStream;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses the input with another engine in chunks of root elements cut by RecordSplitter.
+ * The end offset of each parsed chunk is kept in the Checkpoint. The files before resume_from_file
+ * are skipped, and the records of that file which start before resume_from are skipped by the
+ * splitter without being parsed.
+ * With recover (stop_on_invalid_record: false), a malformed record fails its chunk only. The records
+ * of a failed chunk after the ones already added are parsed one by one, and the records which
+ * still fail are skipped. The input must be in an ASCII compatible encoding.
+ * The input is cut at the end tags which close the root elements, so a root element may contain
+ * elements of the same name. Only a record which fails by itself is cut again at the start tags
+ * of the root element name, since it may have swallowed the following records.
+ */
+class ChunkedParserEngine
+        extends ParserEngine
+{
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final ParserEngine engine;
+    private final String rootPath;
+    private final boolean recover;
+    private final int resumeFile;
+    private final long resumeFrom;
+    private final Checkpoint checkpoint;
+
+    ChunkedParserEngine(ParserEngine engine, String rootPath, boolean recover, int resumeFile, long resumeFrom,
+            Checkpoint checkpoint)
+    {
+        this.engine = engine;
+        this.rootPath = rootPath;
+        this.recover = recover;
+        this.resumeFile = resumeFile;
+        this.resumeFrom = resumeFrom;
+        this.checkpoint = checkpoint;
+    }
+
+    @Override
+    public void parse(FileInput input, RecordHandler handler) throws IOException, SAXException
+    {
+        try (FileInputInputStream is = new FileInputInputStream(input)) {
+            for (int file = 0; is.nextFile(); file++) {
+                if (file < resumeFile) {
+                    continue;
+                }
+                RecordSplitter splitter = new RecordSplitter(is, rootPath, CHUNK_SIZE, false,
+                        file == resumeFile ? resumeFrom : 0);
+                RecordSplitter.Chunk chunk;
+                while ((chunk = splitter.next()) != null) {
+                    parseChunk(chunk, handler);
+                    checkpoint.update(file, splitter.getHeadLength(), splitter.getHeadChecksum(),
+                            chunk.getEndOffset(), chunk.getRecordCount());
+                }
+            }
+        }
+    }
+
+    public void parseChunk(RecordSplitter.Chunk chunk, RecordHandler handler) throws IOException, SAXException
+    {
+        try {
+            engine.parse(new RecordSplitter.ChunkFileInput(chunk), handler);
+            return;
+        }
+        catch (SAXException e) {
+            if (!recover) {
+                throw e;
+            }
+            // parses the rest of the records again.
+        }
+
+        int completed = handler.getCompletedRecords();
+        RecordSplitter splitter = new RecordSplitter(new ByteArrayInputStream(chunk.getData(), 0, chunk.getLength()),
+                rootPath, 1, false, 0);
+        RecordSplitter.Chunk record;
+        for (int i = 0; (record = splitter.next()) != null; i++) {
+            if (i < completed) {
+                continue;
+            }
+            try {
+                engine.parse(new RecordSplitter.ChunkFileInput(record), handler);
+            }
+            catch (SAXException e) {
+                parseBrokenRecord(chunk, i, record, handler, e);
+            }
+        }
+    }
+
+    /**
+     * Skips a malformed record. If its end tag is missing, it runs up to an end tag of an enclosing
+     * element, so the records in it are cut at the start tags of the root element and parsed again.
+     */
+    private void parseBrokenRecord(RecordSplitter.Chunk chunk, int index, RecordSplitter.Chunk record,
+            RecordHandler handler, SAXException error) throws IOException
+    {
+        RecordSplitter splitter = new RecordSplitter(new ByteArrayInputStream(record.getData(), 0, record.getLength()),
+                rootPath, 1, true, 0);
+        // the first one is the malformed record itself.
+        splitter.next();
+        skip(chunk, index, handler, error);
+        RecordSplitter.Chunk next;
+        while ((next = splitter.next()) != null) {
+            try {
+                engine.parse(new RecordSplitter.ChunkFileInput(next), handler);
+            }
+            catch (SAXException e) {
+                skip(chunk, index, handler, e);
+            }
+        }
+    }
+
+    private void skip(RecordSplitter.Chunk chunk, int index, RecordHandler handler, SAXException e)
+    {
+        handler.skipRecord(String.format("malformed XML in the record #%d of the records at bytes %d-%d: %s",
+                index + 1, chunk.getStartOffset(), chunk.getEndOffset(), e.getMessage()));
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Schema;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+/**
+ * Converts the text of a matched element and sets it to the RowWriter.
+ * One setter is resolved per column before parsing starts, so the handler
+ * does not visit the schema for each value.
+ */
+abstract class ColumnSetter
+{
+    protected final Column column;
+    protected final RowWriter writer;
+    // reused to convert attribute values.
+    private char[] scratch = new char[64];
+
+    protected ColumnSetter(Column column, RowWriter writer)
+    {
+        this.column = column;
+        this.writer = writer;
+    }
+
+    public Column getColumn()
+    {
+        return column;
+    }
+
+    public RowWriter getWriter()
+    {
+        return writer;
+    }
+
+    public abstract void set(char[] buf, int offset, int length);
+
+    /**
+     * Sets an attribute value.
+     */
+    public void set(String value)
+    {
+        int length = value.length();
+        if (length > scratch.length) {
+            scratch = new char[Math.max(scratch.length * 2, length)];
+        }
+        value.getChars(0, length, scratch, 0);
+        set(scratch, 0, length);
+    }
+
+    /**
+     * @return setters indexed by column index.
+     */
+    public static ColumnSetter[] newColumnSetters(final RowWriter writer, Schema schema,
+            final FastTimestampParser[] timestampParsers)
+    {
+        final ColumnSetter[] setters = new ColumnSetter[schema.getColumnCount()];
+        schema.visitColumns(new ColumnVisitor() {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                setters[column.getIndex()] = new BooleanColumnSetter(column, writer);
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                setters[column.getIndex()] = new LongColumnSetter(column, writer);
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                setters[column.getIndex()] = new DoubleColumnSetter(column, writer);
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                setters[column.getIndex()] = new StringColumnSetter(column, writer);
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+                setters[column.getIndex()] = new TimestampColumnSetter(column, writer,
+                        timestampParsers[column.getIndex()]);
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+                setters[column.getIndex()] = new JsonColumnSetter(column, writer);
+            }
+        });
+        return setters;
+    }
+
+    static class BooleanColumnSetter
+            extends ColumnSetter
+    {
+        BooleanColumnSetter(Column column, RowWriter writer)
+        {
+            super(column, writer);
+        }
+
+        @Override
+        public void set(char[] buf, int offset, int length)
+        {
+            writer.setBoolean(column, CharParsers.parseBoolean(buf, offset, length));
+        }
+    }
+
+    static class LongColumnSetter
+            extends ColumnSetter
+    {
+        LongColumnSetter(Column column, RowWriter writer)
+        {
+            super(column, writer);
+        }
+
+        @Override
+        public void set(char[] buf, int offset, int length)
+        {
+            writer.setLong(column, CharParsers.parseLong(buf, offset, length));
+        }
+    }
+
+    static class DoubleColumnSetter
+            extends ColumnSetter
+    {
+        DoubleColumnSetter(Column column, RowWriter writer)
+        {
+            super(column, writer);
+        }
+
+        @Override
+        public void set(char[] buf, int offset, int length)
+        {
+            writer.setDouble(column, CharParsers.parseDouble(buf, offset, length));
+        }
+    }
+
+    static class StringColumnSetter
+            extends ColumnSetter
+    {
+        StringColumnSetter(Column column, RowWriter writer)
+        {
+            super(column, writer);
+        }
+
+        @Override
+        public void set(char[] buf, int offset, int length)
+        {
+            writer.setString(column, new String(buf, offset, length));
+        }
+
+        @Override
+        public void set(String value)
+        {
+            writer.setString(column, value);
+        }
+    }
+
+    static class TimestampColumnSetter
+            extends ColumnSetter
+    {
+        private final FastTimestampParser parser;
+
+        TimestampColumnSetter(Column column, RowWriter writer, FastTimestampParser parser)
+        {
+            super(column, writer);
+            this.parser = parser;
+        }
+
+        @Override
+        public void set(char[] buf, int offset, int length)
+        {
+            writer.setTimestamp(column, parser.parse(buf, offset, length));
+        }
+    }
+
+    static class JsonColumnSetter
+            extends ColumnSetter
+    {
+        JsonColumnSetter(Column column, RowWriter writer)
+        {
+            super(column, writer);
+        }
+
+        /**
+         * Sets a text, e.g. an attribute value, as a json string.
+         */
+        @Override
+        public void set(char[] buf, int offset, int length)
+        {
+            writer.setJson(column, ValueFactory.newString(new String(buf, offset, length)));
+        }
+
+        public void set(Value value)
+        {
+            writer.setJson(column, value);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.Arrays;
+
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.SchemaConfig;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.time.TimestampParser;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Parses timestamps of common formats directly from the characters: fixed width %Y, %m, %d, %H, %M
+ * and %S with literals, e.g. %Y-%m-%dT%H:%M:%SZ, in a fixed offset time zone, and %s or %Q alone.
+ * Other formats, and values which do not exactly match the format, are parsed by TimestampParser.
+ * Recent results are cached, since many records share a second. Not thread-safe.
+ */
+class FastTimestampParser
+{
+    private static final int CACHE_SIZE = 64;
+
+    private static final byte LITERAL = 0;
+    private static final byte YEAR = 1;
+    private static final byte MONTH = 2;
+    private static final byte DAY = 3;
+    private static final byte HOUR = 4;
+    private static final byte MINUTE = 5;
+    private static final byte SECOND = 6;
+    private static final byte EPOCH_SECOND = 7;
+    private static final byte EPOCH_MILLI = 8;
+
+    private final TimestampParser parser;
+    // field of each character of a value, or LITERAL. null if the format is not supported.
+    private final byte[] template;
+    private final char[] literals;
+    // EPOCH_SECOND or EPOCH_MILLI if the format is %s or %Q. LITERAL otherwise.
+    private final byte epoch;
+    private final long offsetSeconds;
+    private final int[] fields = new int[SECOND + 1];
+
+    private final char[][] cacheKeys = new char[CACHE_SIZE][];
+    private final Timestamp[] cacheValues = new Timestamp[CACHE_SIZE];
+
+    FastTimestampParser(String format, DateTimeZone timeZone, TimestampParser parser)
+    {
+        this.parser = parser;
+        if (format.equals("%s") || format.equals("%Q")) {
+            this.epoch = format.equals("%s") ? EPOCH_SECOND : EPOCH_MILLI;
+            this.template = null;
+            this.literals = null;
+            this.offsetSeconds = 0;
+            return;
+        }
+        this.epoch = LITERAL;
+        StringBuilder template = new StringBuilder();
+        StringBuilder literals = new StringBuilder();
+        if (compile(format, template, literals) && timeZone.isFixed()) {
+            this.template = new byte[template.length()];
+            for (int i = 0; i < this.template.length; i++) {
+                this.template[i] = (byte) template.charAt(i);
+            }
+            this.literals = literals.toString().toCharArray();
+            this.offsetSeconds = timeZone.getOffset(0L) / 1000;
+        }
+        else {
+            this.template = null;
+            this.literals = null;
+            this.offsetSeconds = 0;
+        }
+    }
+
+    /**
+     * @return parsers indexed by column index. null for non-timestamp columns.
+     */
+    public static FastTimestampParser[] newFastTimestampParsers(PluginTask task, TimestampParser[] timestampParsers)
+    {
+        SchemaConfig schema = task.getSchema();
+        FastTimestampParser[] parsers = new FastTimestampParser[timestampParsers.length];
+        for (int i = 0; i < parsers.length; i++) {
+            if (timestampParsers[i] == null) {
+                continue;
+            }
+            TimestampParser.TimestampColumnOption option = schema.getColumn(i).getOption()
+                    .loadConfig(TimestampParser.TimestampColumnOption.class);
+            parsers[i] = new FastTimestampParser(option.getFormat().or(task.getDefaultTimestampFormat()),
+                    option.getTimeZone().or(task.getDefaultTimeZone()), timestampParsers[i]);
+        }
+        return parsers;
+    }
+
+    /**
+     * Appends the field or LITERAL of each character of a value to the template, and the literal
+     * characters to the literals at the same positions.
+     * @return false if the format has other directives than fixed width ones, or no date.
+     */
+    private static boolean compile(String format, StringBuilder template, StringBuilder literals)
+    {
+        boolean[] hasField = new boolean[SECOND + 1];
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%') {
+                template.append((char) LITERAL);
+                literals.append(c);
+                continue;
+            }
+            if (++i == format.length()) {
+                return false;
+            }
+            c = format.charAt(i);
+            byte field;
+            int width = 2;
+            switch (c) {
+            case '%':
+                template.append((char) LITERAL);
+                literals.append(c);
+                continue;
+            case 'Y':
+                field = YEAR;
+                width = 4;
+                break;
+            case 'm':
+                field = MONTH;
+                break;
+            case 'd':
+                field = DAY;
+                break;
+            case 'H':
+                field = HOUR;
+                break;
+            case 'M':
+                field = MINUTE;
+                break;
+            case 'S':
+                field = SECOND;
+                break;
+            default:
+                return false;
+            }
+            if (hasField[field]) {
+                return false;
+            }
+            hasField[field] = true;
+            for (int j = 0; j < width; j++) {
+                template.append((char) field);
+                literals.append('\0');
+            }
+        }
+        return hasField[YEAR] && hasField[MONTH] && hasField[DAY];
+    }
+
+    public Timestamp parse(char[] buf, int offset, int length)
+    {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        char[] key = cacheKeys[slot];
+        if (key != null && equals(key, buf, offset, length)) {
+            return cacheValues[slot];
+        }
+
+        Timestamp timestamp = parseFast(buf, offset, length);
+        if (timestamp == null) {
+            timestamp = parser.parse(new String(buf, offset, length));
+        }
+        if (key == null || key.length != length) {
+            key = new char[length];
+            cacheKeys[slot] = key;
+        }
+        System.arraycopy(buf, offset, key, 0, length);
+        cacheValues[slot] = timestamp;
+        return timestamp;
+    }
+
+    private static boolean equals(char[] key, char[] buf, int offset, int length)
+    {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buf[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return null if the value has to be parsed by TimestampParser.
+     */
+    private Timestamp parseFast(char[] buf, int offset, int length)
+    {
+        if (epoch != LITERAL) {
+            return parseEpoch(buf, offset, length);
+        }
+        if (template == null || length != template.length) {
+            return null;
+        }
+        Arrays.fill(fields, 0);
+        for (int i = 0; i < length; i++) {
+            char c = buf[offset + i];
+            byte field = template[i];
+            if (field == LITERAL) {
+                if (c != literals[i]) {
+                    return null;
+                }
+            }
+            else if (c >= '0' && c <= '9') {
+                fields[field] = fields[field] * 10 + (c - '0');
+            }
+            else {
+                return null;
+            }
+        }
+        int year = fields[YEAR];
+        int month = fields[MONTH];
+        int day = fields[DAY];
+        // leap seconds and out of range values are left to TimestampParser.
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || fields[HOUR] > 23 || fields[MINUTE] > 59 || fields[SECOND] > 59) {
+            return null;
+        }
+        long seconds = daysFromCivil(year, month, day) * 86400L
+                + fields[HOUR] * 3600 + fields[MINUTE] * 60 + fields[SECOND];
+        return Timestamp.ofEpochSecond(seconds - offsetSeconds);
+    }
+
+    private Timestamp parseEpoch(char[] buf, int offset, int length)
+    {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        // up to 18 digits do not overflow.
+        if (i == end || end - i > 18) {
+            return null;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            value = value * 10 + (c - '0');
+        }
+        if (negative) {
+            value = -value;
+        }
+        return epoch == EPOCH_SECOND ? Timestamp.ofEpochSecond(value) : Timestamp.ofEpochMilli(value);
+    }
+
+    private static int daysInMonth(int year, int month)
+    {
+        switch (month) {
+        case 2:
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @return days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day)
+    {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.embulk.spi.Column;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.xml.sax.Attributes;
+
+/**
+ * Builds a msgpack Value of an element subtree from SAX events.
+ * An element is converted into:
+ * <ul>
+ * <li>its text as a string, if it has neither attributes nor child elements (null if the text is empty).</li>
+ * <li>a map otherwise. attributes are keyed by "@" + name, child elements by their names, and the text by "#text".
+ * child elements of the same name are gathered into an array.</li>
+ * </ul>
+ * Once the subtree exceeds max_json_size, the rest of it is not kept and no value is built.
+ */
+class JsonSubtreeBuilder
+{
+    private static class Frame
+    {
+        private final Map<String, List<Value>> entries = new LinkedHashMap<String, List<Value>>();
+        private final String name;
+        private StringBuilder text = null;
+
+        Frame(String name)
+        {
+            this.name = name;
+        }
+
+        void put(String key, Value value)
+        {
+            List<Value> values = entries.get(key);
+            if (values == null) {
+                values = new ArrayList<Value>(1);
+                entries.put(key, values);
+            }
+            values.add(value);
+        }
+
+        Value toValue()
+        {
+            String textValue = text == null ? null : text.toString();
+            if (entries.isEmpty()) {
+                return textValue == null || textValue.isEmpty() ? ValueFactory.newNil() : ValueFactory.newString(textValue);
+            }
+            if (textValue != null && !textValue.trim().isEmpty()) {
+                put("#text", ValueFactory.newString(textValue));
+            }
+            Map<Value, Value> map = new LinkedHashMap<Value, Value>();
+            for (Map.Entry<String, List<Value>> entry : entries.entrySet()) {
+                List<Value> values = entry.getValue();
+                Value value = values.size() == 1 ? values.get(0) : ValueFactory.newArray(values);
+                map.put(ValueFactory.newString(entry.getKey()), value);
+            }
+            return ValueFactory.newMap(map);
+        }
+    }
+
+    private final List<Frame> frames = new ArrayList<Frame>();
+    private Column column = null;
+    private int maxSize;
+    private long size;
+    private boolean oversized;
+    // depth of the elements in the subtree, kept while the frames are dropped after oversized.
+    private int depth;
+    private Value result = null;
+
+    public boolean isActive()
+    {
+        return column != null;
+    }
+
+    public Column getColumn()
+    {
+        return column;
+    }
+
+    /**
+     * Starts to build the value of the column from the element.
+     * @param maxSize limit of the total length of names, attribute values and texts in the subtree
+     */
+    public void begin(Column column, int maxSize, String qName, Attributes attributes)
+    {
+        this.column = column;
+        this.maxSize = maxSize;
+        this.size = 0;
+        this.oversized = false;
+        this.depth = 0;
+        frames.clear();
+        startElement(qName, attributes);
+    }
+
+    /**
+     * @return true if the subtree exceeded max_json_size. no value is built.
+     */
+    public boolean isOversized()
+    {
+        return oversized;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public void startElement(String qName, Attributes attributes)
+    {
+        depth++;
+        if (!addSize(qName.length())) {
+            return;
+        }
+        Frame frame = new Frame(qName);
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String value = attributes.getValue(i);
+            if (!addSize(attributes.getQName(i).length() + value.length())) {
+                return;
+            }
+            frame.put("@" + attributes.getQName(i), ValueFactory.newString(value));
+        }
+        frames.add(frame);
+    }
+
+    public void characters(char[] ch, int offset, int length)
+    {
+        if (!addSize(length)) {
+            return;
+        }
+        Frame frame = frames.get(frames.size() - 1);
+        if (frame.text == null) {
+            frame.text = new StringBuilder(length);
+        }
+        frame.text.append(ch, offset, length);
+    }
+
+    /**
+     * @return true if the element where the building began ends.
+     */
+    public boolean endElement()
+    {
+        depth--;
+        if (oversized) {
+            if (depth == 0) {
+                column = null;
+                return true;
+            }
+            return false;
+        }
+        Frame frame = frames.remove(frames.size() - 1);
+        Value value = frame.toValue();
+        if (frames.isEmpty()) {
+            result = value;
+            column = null;
+            return true;
+        }
+        frames.get(frames.size() - 1).put(frame.name, value);
+        return false;
+    }
+
+    /**
+     * @return the value built last, or null if it was oversized.
+     */
+    public Value getResult()
+    {
+        Value value = result;
+        result = null;
+        return value;
+    }
+
+    /**
+     * @return false if the subtree is oversized.
+     */
+    private boolean addSize(int length)
+    {
+        if (oversized) {
+            return false;
+        }
+        size += length;
+        if (size > maxSize) {
+            oversized = true;
+            frames.clear();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.embulk.parser.xml2.Xml2ParserPlugin.ColumnOption;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.FileInput;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.TimestampParser;
+import org.embulk.spi.util.FileInputInputStream;
+import org.embulk.spi.util.Timestamps;
+import org.slf4j.Logger;
+
+/**
+ * Splits each file at root element boundaries with RecordSplitter and parses the chunks
+ * on a pool of worker threads. Each chunk is parsed with the worker's own engine and
+ * handler into its own PageBuilder, and the pages are passed to the output on the task thread.
+ */
+class ParallelSplitRunner
+{
+    private final PluginTask task;
+    private final Schema schema;
+    private final PathTrie pathTrie;
+    private final ColumnOption[] columnOptions;
+    private final ParserMetrics metrics;
+    private final SkippedRecordCounter skippedRecords;
+    private final Checkpoint checkpoint;
+    private final ExecSession session;
+    private final BufferAllocator allocator;
+    private final int threads;
+    // added to the metrics after all workers merged theirs.
+    private long outputNanos;
+    private final Logger logger = Exec.getLogger(ParallelSplitRunner.class);
+
+    // engine and timestamp parsers are not thread-safe. each worker thread has its own.
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+
+    ParallelSplitRunner(PluginTask task, Schema schema, PathTrie pathTrie, ParserMetrics metrics,
+            SkippedRecordCounter skippedRecords, Checkpoint checkpoint)
+    {
+        this.metrics = metrics;
+        this.skippedRecords = skippedRecords;
+        this.checkpoint = checkpoint;
+        this.task = task;
+        this.schema = schema;
+        this.pathTrie = pathTrie;
+        this.columnOptions = Xml2ParserPlugin.newColumnOptions(task);
+        this.session = Exec.session();
+        this.allocator = Exec.getBufferAllocator();
+        this.threads = task.getParallelSplitThreads().or(Runtime.getRuntime().availableProcessors());
+    }
+
+    public void run(FileInput input, PageOutput output)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        // chunks being parsed in order of the input. limits the memory used by read-ahead chunks.
+        Deque<Future<List<Page>>> running = new ArrayDeque<Future<List<Page>>>();
+        // file index, head length and checksum of the file, end offset and record count of the running chunks,
+        // to update the checkpoint in order.
+        Deque<long[]> runningEnds = new ArrayDeque<long[]>();
+        CompletionService<List<Page>> completion = new ExecutorCompletionService<List<Page>>(executor);
+        boolean preserveOrder = task.getParallelSplitPreserveOrder();
+        int maxRunning = threads * 2;
+        try (FileInputInputStream is = new FileInputInputStream(input)) {
+            for (int file = 0; is.nextFile(); file++) {
+                if (file < task.getResumeFromFile()) {
+                    continue;
+                }
+                RecordSplitter splitter = new RecordSplitter(is, pathTrie.getRootPaths()[0], task.getParallelSplitChunkSize(),
+                        false, file == task.getResumeFromFile() ? task.getResumeFrom().or(0L) : 0);
+                RecordSplitter.Chunk chunk;
+                while ((chunk = splitter.next()) != null) {
+                    running.addLast(completion.submit(new ChunkParser(chunk)));
+                    runningEnds.addLast(new long[] {file, splitter.getHeadLength(), splitter.getHeadChecksum(),
+                            chunk.getEndOffset(), chunk.getRecordCount()});
+                    if (running.size() >= maxRunning) {
+                        addPages(output, takeCompleted(running, completion, preserveOrder));
+                        updateCheckpoint(runningEnds, preserveOrder);
+                    }
+                }
+            }
+            while (!running.isEmpty()) {
+                addPages(output, takeCompleted(running, completion, preserveOrder));
+                updateCheckpoint(runningEnds, preserveOrder);
+            }
+            output.finish();
+            metrics.addPageBuilderNanos(outputNanos);
+        }
+        catch (IOException | InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            releaseRunning(running);
+        }
+    }
+
+    private List<Page> takeCompleted(Deque<Future<List<Page>>> running, CompletionService<List<Page>> completion,
+            boolean preserveOrder) throws InterruptedException, ExecutionException
+    {
+        Future<List<Page>> future;
+        if (preserveOrder) {
+            future = running.removeFirst();
+        }
+        else {
+            future = completion.take();
+            running.remove(future);
+        }
+        return future.get();
+    }
+
+    private void updateCheckpoint(Deque<long[]> runningEnds, boolean preserveOrder)
+    {
+        long[] end = runningEnds.removeFirst();
+        // chunks completed out of order leave gaps before the offset.
+        if (preserveOrder) {
+            checkpoint.update((int) end[0], (int) end[1], end[2], end[3], (int) end[4]);
+        }
+    }
+
+    private void addPages(PageOutput output, List<Page> pages)
+    {
+        long start = System.nanoTime();
+        for (Page page : pages) {
+            output.add(page);
+        }
+        outputNanos += System.nanoTime() - start;
+    }
+
+    private void releaseRunning(Deque<Future<List<Page>>> running)
+    {
+        for (Future<List<Page>> future : running) {
+            future.cancel(true);
+            if (!future.isCancelled()) {
+                try {
+                    for (Page page : future.get()) {
+                        page.release();
+                    }
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    // the error is already reported.
+                }
+            }
+        }
+    }
+
+    private Worker getWorker()
+    {
+        Worker worker = workers.get();
+        if (worker == null) {
+            worker = new Worker();
+            workers.set(worker);
+        }
+        return worker;
+    }
+
+    private class Worker
+    {
+        private final ParserEngine engine = ParserEngine.newParserEngine(task);
+        private final ChunkedParserEngine chunkedEngine = new ChunkedParserEngine(engine, pathTrie.getRootPaths()[0], true, 0, 0, checkpoint);
+        private final TimestampParser[] timestampParsers = Timestamps.newTimestampColumnParsers(task, task.getSchema());
+    }
+
+    private class ChunkParser
+            implements Callable<List<Page>>
+    {
+        private final RecordSplitter.Chunk chunk;
+
+        ChunkParser(RecordSplitter.Chunk chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public List<Page> call() throws Exception
+        {
+            try {
+                return parse();
+            }
+            catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        private List<Page> parse() throws ExecutionException
+        {
+            return Exec.doWith(session, new ExecAction<List<Page>>() {
+                @Override
+                public List<Page> run() throws Exception
+                {
+                    Worker worker = getWorker();
+                    PageCollector collector = new PageCollector();
+                    PageBuilder pageBuilder = new PageBuilder(allocator, schema, collector);
+                    ParserMetrics chunkMetrics = new ParserMetrics(schema, 0);
+                    try {
+                        long start = System.nanoTime();
+                        RecordHandler handler = new RecordHandler(task, pathTrie, schema, worker.timestampParsers,
+                                columnOptions, pageBuilder, chunkMetrics, skippedRecords);
+                        if (task.getStopOnInvalidRecord()) {
+                            worker.engine.parse(new RecordSplitter.ChunkFileInput(chunk), handler);
+                        }
+                        else {
+                            worker.chunkedEngine.parseChunk(chunk, handler);
+                        }
+                        pageBuilder.finish();
+                        chunkMetrics.addParseNanos(System.nanoTime() - start);
+                        metrics.merge(chunkMetrics);
+                    }
+                    catch (Exception e) {
+                        collector.release();
+                        logger.error(String.format("Failed to parse records at bytes %d-%d", chunk.getStartOffset(), chunk.getEndOffset()));
+                        throw e;
+                    }
+                    finally {
+                        pageBuilder.close();
+                    }
+                    return collector.pages;
+                }
+            });
+        }
+    }
+
+    private static class PageCollector
+            implements PageOutput
+    {
+        private final List<Page> pages = new ArrayList<Page>();
+
+        @Override
+        public void add(Page page)
+        {
+            pages.add(page);
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        public void release()
+        {
+            for (Page page : pages) {
+                page.release();
+            }
+            pages.clear();
+        }
+    }
+
+    private static class WorkerThreadFactory
+            implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "xml2-parallel-split-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.IOException;
+
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.FileInput;
+import org.xml.sax.SAXException;
+
+/**
+ * Source of XML events. An engine tokenizes every file of the FileInput
+ * and delivers the events to RecordHandler through the SAX callbacks, so the
+ * path matching and the column logic are shared by all engines.
+ * After startElement, an engine should skip the subtree of the element as cheaply
+ * as it can if RecordHandler#isSkippingSubtree() is true. only the endElement
+ * of the skipped element is delivered then.
+ * An engine is used by one thread at a time, and keeps its parser or factory between calls.
+ * The parser options of the task are applied when the engine is created.
+ */
+abstract class ParserEngine
+{
+    // limits of the JDK's parsers. 0 means no limit.
+    static final String ENTITY_EXPANSION_LIMIT = "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+    static final String TOTAL_ENTITY_SIZE_LIMIT = "http://www.oracle.com/xml/jaxp/properties/totalEntitySizeLimit";
+
+    public static ParserEngine newParserEngine(PluginTask task)
+    {
+        switch (task.getParserEngine()) {
+        case STAX:
+            return new StaxParserEngine(task);
+        case AALTO_ASYNC:
+            return new AaltoAsyncParserEngine(task);
+        case SAX:
+        default:
+            return new SaxParserEngine(task);
+        }
+    }
+
+    /**
+     * Parses all remaining files of the input. startDocument and endDocument
+     * of the handler are called once per file.
+     */
+    public abstract void parse(FileInput input, RecordHandler handler) throws IOException, SAXException;
+}
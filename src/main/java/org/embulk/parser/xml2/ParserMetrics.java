@@ -0,0 +1,210 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Column;
+import org.embulk.spi.FileInput;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+
+/**
+ * Counters and timers of a task. The counters are plain fields updated by the parsing thread.
+ * Time is measured per input buffer and per record, not per value, to keep the overhead low.
+ * The parallel_split workers count into their own instances and merge them into the task's one.
+ */
+class ParserMetrics
+{
+    private final Schema schema;
+    private final long progressIntervalNanos;
+    private final long startNanos;
+    private long lastProgressNanos;
+
+    private long bytes;
+    private long elements;
+    private long skippedSubtrees;
+    private long records;
+    private long skippedRecords;
+    private long filteredRecords;
+    private long conversionErrors;
+    private long lateExplodeValues;
+    // indexed by column index.
+    private final long[] values;
+    private long readNanos;
+    private long parseNanos;
+    private long pageBuilderNanos;
+
+    ParserMetrics(Schema schema, int progressLogIntervalSeconds)
+    {
+        this.schema = schema;
+        this.progressIntervalNanos = TimeUnit.SECONDS.toNanos(progressLogIntervalSeconds);
+        this.startNanos = System.nanoTime();
+        this.lastProgressNanos = startNanos;
+        this.values = new long[schema.getColumnCount()];
+    }
+
+    public void element()
+    {
+        elements++;
+    }
+
+    public void skippedSubtree()
+    {
+        skippedSubtrees++;
+    }
+
+    public void value(Column column)
+    {
+        values[column.getIndex()]++;
+    }
+
+    public void conversionError()
+    {
+        conversionErrors++;
+    }
+
+    public void lateExplodeValue()
+    {
+        lateExplodeValues++;
+    }
+
+    public void record()
+    {
+        records++;
+    }
+
+    public void skippedRecord()
+    {
+        skippedRecords++;
+    }
+
+    public void filteredRecord()
+    {
+        filteredRecords++;
+    }
+
+    public long getRecords()
+    {
+        return records;
+    }
+
+    public void addParseNanos(long nanos)
+    {
+        parseNanos += nanos;
+    }
+
+    public void addPageBuilderNanos(long nanos)
+    {
+        pageBuilderNanos += nanos;
+    }
+
+    /**
+     * Adds the counters of a parallel_split worker. bytes and read time are counted by the thread
+     * which reads the input, so they are not merged.
+     */
+    public synchronized void merge(ParserMetrics other)
+    {
+        elements += other.elements;
+        skippedSubtrees += other.skippedSubtrees;
+        records += other.records;
+        skippedRecords += other.skippedRecords;
+        filteredRecords += other.filteredRecords;
+        conversionErrors += other.conversionErrors;
+        lateExplodeValues += other.lateExplodeValues;
+        for (int i = 0; i < values.length; i++) {
+            values[i] += other.values[i];
+        }
+        parseNanos += other.parseNanos;
+        pageBuilderNanos += other.pageBuilderNanos;
+    }
+
+    /**
+     * @return FileInput which counts the bytes and the time to poll buffers, and logs the progress.
+     */
+    public FileInput meter(final FileInput input, final Logger logger)
+    {
+        return new FileInput() {
+            @Override
+            public boolean nextFile()
+            {
+                return input.nextFile();
+            }
+
+            @Override
+            public Buffer poll()
+            {
+                long start = System.nanoTime();
+                Buffer buffer = input.poll();
+                long end = System.nanoTime();
+                readNanos += end - start;
+                if (buffer != null) {
+                    bytes += buffer.limit();
+                }
+                if (progressIntervalNanos > 0 && end - lastProgressNanos >= progressIntervalNanos) {
+                    lastProgressNanos = end;
+                    logProgress(logger, end);
+                }
+                return buffer;
+            }
+
+            @Override
+            public void close()
+            {
+                input.close();
+            }
+        };
+    }
+
+    private synchronized void logProgress(Logger logger, long now)
+    {
+        double seconds = (now - startNanos) / 1e9;
+        logger.info(String.format("Parsed %,d records, %,d bytes in %.1f s (%.0f records/s, %.2f MB/s)",
+                records, bytes, seconds, records / seconds, bytes / seconds / (1024 * 1024)));
+    }
+
+    public synchronized void log(Logger logger)
+    {
+        logProgress(logger, System.nanoTime());
+        Map<String, Long> valuesByType = new LinkedHashMap<String, Long>();
+        for (Column column : schema.getColumns()) {
+            String type = column.getType().getName();
+            Long count = valuesByType.get(type);
+            valuesByType.put(type, (count == null ? 0 : count) + values[column.getIndex()]);
+        }
+        logger.info(String.format("Elements: %,d, skipped subtrees: %,d, values: %s, conversion errors: %,d, skipped records: %,d, filtered records: %,d",
+                elements, skippedSubtrees, valuesByType, conversionErrors, skippedRecords, filteredRecords));
+        if (lateExplodeValues > 0) {
+            logger.warn(String.format("Values not in the exploded rows since they appear after the explode elements: %,d",
+                    lateExplodeValues));
+        }
+        // parse time is measured around ParserEngine#parse, so it includes reads and page building done in it.
+        logger.info(String.format("Time: read %.3f s, parse %.3f s, page builder %.3f s",
+                readNanos / 1e9, parseNanos / 1e9, pageBuilderNanos / 1e9));
+    }
+}
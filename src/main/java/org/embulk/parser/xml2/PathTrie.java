@@ -0,0 +1,390 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.parser.xml2.Xml2ParserPlugin.ColumnOption;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.parser.xml2.Xml2ParserPlugin.RepeatMode;
+import org.embulk.parser.xml2.Xml2ParserPlugin.RootOption;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+
+/**
+ * Trie of the root element paths and the column paths under them.
+ * The handler walks this trie by qName on each start/end element event,
+ * so no path string is built while parsing. Records of all roots are
+ * extracted in one pass over the document.
+ */
+class PathTrie
+{
+    static class Node
+    {
+        private final String name;
+        private final Node parent;
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private boolean root = false;
+        private String recordType = null;
+        private boolean explode = false;
+        private Column column = null;
+        private String[] attributeNames = new String[0];
+        private Column[] attributeColumns = new Column[0];
+        private Column[] arrayColumns = new Column[0];
+
+        Node(String name, Node parent)
+        {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return child node for the element, or null if no root or column path goes through it.
+         */
+        public Node getChild(String qName)
+        {
+            return children.get(qName);
+        }
+
+        public boolean isRoot()
+        {
+            return root;
+        }
+
+        /**
+         * @return value of record_type_column for the records of this root element.
+         */
+        public String getRecordType()
+        {
+            return recordType;
+        }
+
+        /**
+         * @return true if one row is added for each of this element (on_repeat: explode).
+         */
+        public boolean isExplode()
+        {
+            return explode;
+        }
+
+        /**
+         * @return column which this element is mapped to, or null.
+         */
+        public Column getColumn()
+        {
+            return column;
+        }
+
+        /**
+         * @return qNames of the attributes mapped to columns. same order as getAttributeColumns().
+         */
+        public String[] getAttributeNames()
+        {
+            return attributeNames;
+        }
+
+        public Column[] getAttributeColumns()
+        {
+            return attributeColumns;
+        }
+
+        /**
+         * @return on_repeat: array columns whose values are collected within this element.
+         * the arrays are set at the end of this element.
+         */
+        public Column[] getArrayColumns()
+        {
+            return arrayColumns;
+        }
+
+        private void addAttribute(String qName, Column column)
+        {
+            if (Arrays.asList(attributeNames).contains(qName)) {
+                throw new ConfigException(String.format("Column '%s' is defined more than once", column.getName()));
+            }
+            attributeNames = Arrays.copyOf(attributeNames, attributeNames.length + 1);
+            attributeNames[attributeNames.length - 1] = qName;
+            attributeColumns = Arrays.copyOf(attributeColumns, attributeColumns.length + 1);
+            attributeColumns[attributeColumns.length - 1] = column;
+        }
+
+        private Node getOrAddChild(String qName)
+        {
+            Node child = children.get(qName);
+            if (child == null) {
+                child = new Node(qName, this);
+                children.put(qName, child);
+            }
+            return child;
+        }
+    }
+
+    private final Node top;
+    private final int[] explodeColumnIndexes;
+    private final String[] rootPaths;
+    private final Node[] columnRoots;
+    private final Column recordTypeColumn;
+
+    private PathTrie(Node top, int[] explodeColumnIndexes, String[] rootPaths, Node[] columnRoots,
+            Column recordTypeColumn)
+    {
+        this.top = top;
+        this.explodeColumnIndexes = explodeColumnIndexes;
+        this.rootPaths = rootPaths;
+        this.columnRoots = columnRoots;
+        this.recordTypeColumn = recordTypeColumn;
+    }
+
+    /**
+     * @return node of the document itself. its children are the top-level elements.
+     */
+    public Node getTop()
+    {
+        return top;
+    }
+
+    /**
+     * @return indexes of the columns under the explode element. they are cleared after each exploded row.
+     * empty if no column is on_repeat: explode.
+     */
+    public int[] getExplodeColumnIndexes()
+    {
+        return explodeColumnIndexes;
+    }
+
+    /**
+     * @return paths of the root elements, in the order of the roots option.
+     */
+    public String[] getRootPaths()
+    {
+        return rootPaths;
+    }
+
+    /**
+     * @return root node which the column belongs to, or null for record_type_column.
+     */
+    public Node getColumnRoot(int columnIndex)
+    {
+        return columnRoots[columnIndex];
+    }
+
+    /**
+     * @return column set to the record type of each record, or null.
+     */
+    public Column getRecordTypeColumn()
+    {
+        return recordTypeColumn;
+    }
+
+    public static PathTrie compile(PluginTask task, Schema schema, ColumnOption[] columnOptions)
+    {
+        Node top = new Node("", null);
+        Map<String, Node> roots = new LinkedHashMap<String, Node>();
+        if (task.getRoots().isEmpty()) {
+            if (!task.getRoot().isPresent()) {
+                throw new ConfigException("root or roots is required");
+            }
+            addRoot(top, roots, task.getRoot().get(), task.getRoot().get());
+        }
+        else {
+            if (task.getRoot().isPresent()) {
+                throw new ConfigException("root and roots can not be used together");
+            }
+            for (ConfigSource config : task.getRoots()) {
+                RootOption rootOption = config.loadConfig(RootOption.class);
+                addRoot(top, roots, rootOption.getPath(), rootOption.getRecordType().or(rootOption.getPath()));
+            }
+        }
+        for (Map.Entry<String, Node> entry : roots.entrySet()) {
+            if (isBelowRoot(entry.getValue())) {
+                throw new ConfigException(String.format("Root '%s' must not be under another root", entry.getKey()));
+            }
+        }
+
+        Column recordTypeColumn = null;
+        if (task.getRecordTypeColumn().isPresent()) {
+            for (Column column : schema.getColumns()) {
+                if (column.getName().equals(task.getRecordTypeColumn().get())) {
+                    recordTypeColumn = column;
+                }
+            }
+            if (recordTypeColumn == null || !recordTypeColumn.getType().equals(Types.STRING)) {
+                throw new ConfigException(String.format("record_type_column '%s' must be a string column in the schema",
+                        task.getRecordTypeColumn().get()));
+            }
+        }
+
+        Node explodeNode = null;
+        Node[] columnNodes = new Node[schema.getColumnCount()];
+        Node[] columnRoots = new Node[schema.getColumnCount()];
+        for (Column column : schema.getColumns()) {
+            if (column == recordTypeColumn) {
+                continue;
+            }
+            ColumnOption columnOption = columnOptions[column.getIndex()];
+            // columns belong to the first root unless specified.
+            Node root = columnOption.getRoot().isPresent() ? roots.get(columnOption.getRoot().get())
+                    : roots.values().iterator().next();
+            if (root == null) {
+                throw new ConfigException(String.format("Root '%s' of column '%s' is not in root or roots",
+                        columnOption.getRoot().get(), column.getName()));
+            }
+            columnRoots[column.getIndex()] = root;
+            // path relative to the root. columns of different roots may have the same path.
+            String path = columnOption.getPath().or(column.getName());
+            // "a/b/@c" is the attribute c of the element a/b. "@c" is the attribute of the root element.
+            int slash = path.lastIndexOf('/');
+            String last = path.substring(slash + 1);
+            Node node;
+            if (last.startsWith("@")) {
+                node = slash < 0 ? root : addPath(root, path.substring(0, slash));
+                if (last.length() == 1) {
+                    throw new ConfigException(String.format("Invalid attribute path '%s'", path));
+                }
+                node.addAttribute(last.substring(1), column);
+            }
+            else {
+                // "." is the text of the root element itself.
+                node = path.equals(".") ? root : addPath(root, path);
+                if (node.column != null) {
+                    throw new ConfigException(String.format("Column '%s' is defined more than once", column.getName()));
+                }
+                node.column = column;
+            }
+
+            RepeatMode onRepeat = columnOptions[column.getIndex()].getOnRepeat();
+            if (onRepeat == RepeatMode.ARRAY) {
+                if (!column.getType().equals(Types.JSON)) {
+                    throw new ConfigException(String.format("on_repeat: array is supported only by json columns: '%s'", path));
+                }
+                // the repeated element is collected within its parent element.
+                if (node.isRoot()) {
+                    throw new ConfigException(String.format("on_repeat: array can not be used for the attributes of the root element: '%s'", path));
+                }
+                node.parent.arrayColumns = Arrays.copyOf(node.parent.arrayColumns, node.parent.arrayColumns.length + 1);
+                node.parent.arrayColumns[node.parent.arrayColumns.length - 1] = column;
+            }
+            else if (onRepeat == RepeatMode.EXPLODE) {
+                if (node.isRoot()) {
+                    throw new ConfigException(String.format("on_repeat: explode can not be used for the attributes of the root element: '%s'", path));
+                }
+                // rows are added per the innermost element which contains all explode columns.
+                explodeNode = explodeNode == null ? node : commonAncestor(explodeNode, node);
+                if (!isBelowRoot(explodeNode)) {
+                    throw new ConfigException(String.format("on_repeat: explode columns must be under the same element below the root: '%s'", path));
+                }
+            }
+            Integer maxValueSize = columnOptions[column.getIndex()].getMaxValueSize().orNull();
+            if (maxValueSize != null && maxValueSize <= 0) {
+                throw new ConfigException(String.format("max_value_size must be positive: '%s'", path));
+            }
+            if (maxValueSize != null && column.getType().equals(Types.JSON)) {
+                throw new ConfigException(String.format("max_value_size is not supported by json columns. use max_json_size: '%s'", path));
+            }
+            columnNodes[column.getIndex()] = node;
+        }
+
+        List<Integer> explodeColumnIndexes = new ArrayList<Integer>();
+        if (explodeNode != null) {
+            explodeNode.explode = true;
+            for (int i = 0; i < columnNodes.length; i++) {
+                if (isAncestorOrSelf(explodeNode, columnNodes[i])) {
+                    explodeColumnIndexes.add(i);
+                }
+            }
+        }
+        int[] indexes = new int[explodeColumnIndexes.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = explodeColumnIndexes.get(i);
+        }
+        return new PathTrie(top, indexes, roots.keySet().toArray(new String[roots.size()]), columnRoots,
+                recordTypeColumn);
+    }
+
+    private static void addRoot(Node top, Map<String, Node> roots, String path, String recordType)
+    {
+        Node root = addPath(top, path);
+        if (root.root) {
+            throw new ConfigException(String.format("Root '%s' is defined more than once", path));
+        }
+        root.root = true;
+        root.recordType = recordType;
+        roots.put(path, root);
+    }
+
+    private static boolean isBelowRoot(Node node)
+    {
+        for (Node n = node.parent; n != null; n = n.parent) {
+            if (n.root) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Node commonAncestor(Node a, Node b)
+    {
+        Node node = a;
+        while (!isAncestorOrSelf(node, b)) {
+            node = node.parent;
+        }
+        return node;
+    }
+
+    private static boolean isAncestorOrSelf(Node ancestor, Node node)
+    {
+        for (Node n = node; n != null; n = n.parent) {
+            if (n == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Node addPath(Node from, String path)
+    {
+        Node node = from;
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || name.startsWith("@")) {
+                throw new ConfigException(String.format("Invalid element path '%s'", path));
+            }
+            node = node.getOrAddChild(name);
+        }
+        return node;
+    }
+}
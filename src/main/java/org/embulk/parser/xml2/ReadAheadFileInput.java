@@ -0,0 +1,263 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import com.google.common.base.Throwables;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.FileInput;
+
+/**
+ * FileInput which reads the upstream FileInput on a producer thread, so that reading and
+ * decoding of the input overlap with parsing. Data is copied into a fixed ring of reusable
+ * arrays, so at most depth + 1 arrays of bufferSize bytes are used whatever the upstream buffers are.
+ * An array returned by poll() is reused once the next poll(), nextFile() or close() is called.
+ * An error of the producer is thrown from poll() or nextFile() on the parsing thread, and so is
+ * an IllegalStateException if they are called after close(), instead of waiting for data forever.
+ */
+class ReadAheadFileInput
+        implements FileInput
+{
+    private static final Item NEXT_FILE = new Item(null, 0, null);
+    private static final Item END_OF_INPUT = new Item(null, 0, null);
+
+    private static class Item
+    {
+        private final byte[] data;
+        private final int length;
+        private final Throwable error;
+
+        Item(byte[] data, int length, Throwable error)
+        {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private final FileInput upstream;
+    private final int bufferSize;
+    private final BlockingQueue<Item> filled;
+    private final BlockingQueue<byte[]> free;
+    private final Thread producer;
+
+    private Item pending = null;
+    private byte[] consuming = null;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    ReadAheadFileInput(FileInput upstream, int depth, int bufferSize)
+    {
+        this.upstream = upstream;
+        this.bufferSize = bufferSize;
+        // markers of files and the error are queued together with data, so the queue has room for them.
+        this.filled = new ArrayBlockingQueue<Item>(depth + 2);
+        this.free = new ArrayBlockingQueue<byte[]>(depth + 1);
+        for (int i = 0; i < depth + 1; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        this.producer = new Thread(new Producer(Exec.session()), "xml2-read-ahead");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    @Override
+    public boolean nextFile()
+    {
+        recycle();
+        while (true) {
+            Item item = take();
+            if (item == NEXT_FILE) {
+                return true;
+            }
+            if (item == END_OF_INPUT) {
+                finished = true;
+                return false;
+            }
+            // rest of the current file.
+            free.add(item.data);
+        }
+    }
+
+    @Override
+    public Buffer poll()
+    {
+        recycle();
+        Item item = take();
+        if (item == NEXT_FILE || item == END_OF_INPUT) {
+            pending = item;
+            return null;
+        }
+        consuming = item.data;
+        return Buffer.wrap(item.data, 0, item.length);
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        producer.interrupt();
+        try {
+            producer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recycle()
+    {
+        if (consuming != null) {
+            free.add(consuming);
+            consuming = null;
+        }
+    }
+
+    private Item take()
+    {
+        if (pending != null) {
+            Item item = pending;
+            pending = null;
+            return item;
+        }
+        if (finished) {
+            return END_OF_INPUT;
+        }
+        if (closed) {
+            throw new IllegalStateException("Read-ahead input is already closed");
+        }
+        Item item;
+        try {
+            while ((item = filled.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (!producer.isAlive()) {
+                    // the producer queues the end of input or an error before it exits unless it is interrupted.
+                    item = filled.poll();
+                    if (item == null) {
+                        throw new IllegalStateException("Read-ahead thread exited before the end of input");
+                    }
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        if (item.error != null) {
+            finished = true;
+            throw Throwables.propagate(item.error);
+        }
+        return item;
+    }
+
+    private class Producer
+            implements Runnable
+    {
+        private final ExecSession session;
+
+        Producer(ExecSession session)
+        {
+            this.session = session;
+        }
+
+        @Override
+        public void run()
+        {
+            Throwable error = null;
+            try {
+                Exec.doWith(session, new ExecAction<Void>() {
+                    @Override
+                    public Void run() throws Exception
+                    {
+                        produce();
+                        return null;
+                    }
+                });
+            }
+            catch (ExecutionException e) {
+                error = e.getCause();
+            }
+            catch (Throwable e) {
+                error = e;
+            }
+            if (error == null || error instanceof InterruptedException) {
+                // completed, or closed by the consumer.
+                return;
+            }
+            try {
+                filled.put(new Item(null, 0, error));
+            }
+            catch (InterruptedException e) {
+                // closed by the consumer.
+            }
+        }
+
+        private void produce() throws InterruptedException
+        {
+            while (upstream.nextFile()) {
+                filled.put(NEXT_FILE);
+                byte[] array = null;
+                int length = 0;
+                Buffer buffer;
+                while ((buffer = upstream.poll()) != null) {
+                    try {
+                        int offset = 0;
+                        int remaining = buffer.limit();
+                        while (remaining > 0) {
+                            if (array == null) {
+                                array = free.take();
+                                length = 0;
+                            }
+                            int n = Math.min(remaining, bufferSize - length);
+                            buffer.getBytes(offset, array, length, n);
+                            offset += n;
+                            length += n;
+                            remaining -= n;
+                            if (length == bufferSize) {
+                                filled.put(new Item(array, length, null));
+                                array = null;
+                            }
+                        }
+                    }
+                    finally {
+                        buffer.release();
+                    }
+                }
+                if (array != null) {
+                    filled.put(new Item(array, length, null));
+                }
+            }
+            filled.put(END_OF_INPUT);
+        }
+    }
+}
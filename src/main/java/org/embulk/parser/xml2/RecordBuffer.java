@@ -0,0 +1,185 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.Arrays;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.msgpack.value.Value;
+
+/**
+ * Holds the values of one row until they are written to the PageBuilder.
+ * Primitive values are kept in primitive arrays, so buffering a row allocates nothing.
+ */
+class RecordBuffer
+        implements RowWriter
+{
+    private static final byte UNSET = 0;
+    private static final byte NULL = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte TIMESTAMP = 6;
+    private static final byte JSON = 7;
+
+    private final Schema schema;
+    private final byte[] kinds;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+    // columns set since the last clear() or resetUpdated().
+    private final boolean[] updated;
+
+    RecordBuffer(Schema schema)
+    {
+        int size = schema.getColumnCount();
+        this.schema = schema;
+        this.kinds = new byte[size];
+        this.longs = new long[size];
+        this.doubles = new double[size];
+        this.objects = new Object[size];
+        this.updated = new boolean[size];
+    }
+
+    @Override
+    public void setNull(Column column)
+    {
+        set(column.getIndex(), NULL, null);
+    }
+
+    @Override
+    public void setBoolean(Column column, boolean value)
+    {
+        longs[column.getIndex()] = value ? 1 : 0;
+        set(column.getIndex(), BOOLEAN, null);
+    }
+
+    @Override
+    public void setLong(Column column, long value)
+    {
+        longs[column.getIndex()] = value;
+        set(column.getIndex(), LONG, null);
+    }
+
+    @Override
+    public void setDouble(Column column, double value)
+    {
+        doubles[column.getIndex()] = value;
+        set(column.getIndex(), DOUBLE, null);
+    }
+
+    @Override
+    public void setString(Column column, String value)
+    {
+        set(column.getIndex(), STRING, value);
+    }
+
+    @Override
+    public void setTimestamp(Column column, Timestamp value)
+    {
+        set(column.getIndex(), TIMESTAMP, value);
+    }
+
+    @Override
+    public void setJson(Column column, Value value)
+    {
+        set(column.getIndex(), JSON, value);
+    }
+
+    private void set(int index, byte kind, Object value)
+    {
+        kinds[index] = kind;
+        objects[index] = value;
+        updated[index] = true;
+    }
+
+    /**
+     * Writes the buffered values to the current row of the PageBuilder. unset columns are left as they are.
+     */
+    public void writeTo(PageBuilder pageBuilder)
+    {
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+            case UNSET:
+                break;
+            case NULL:
+                pageBuilder.setNull(schema.getColumn(i));
+                break;
+            case BOOLEAN:
+                pageBuilder.setBoolean(schema.getColumn(i), longs[i] != 0);
+                break;
+            case LONG:
+                pageBuilder.setLong(schema.getColumn(i), longs[i]);
+                break;
+            case DOUBLE:
+                pageBuilder.setDouble(schema.getColumn(i), doubles[i]);
+                break;
+            case STRING:
+                pageBuilder.setString(schema.getColumn(i), (String) objects[i]);
+                break;
+            case TIMESTAMP:
+                pageBuilder.setTimestamp(schema.getColumn(i), (Timestamp) objects[i]);
+                break;
+            case JSON:
+                pageBuilder.setJson(schema.getColumn(i), (Value) objects[i]);
+                break;
+            default:
+                throw new AssertionError();
+            }
+        }
+    }
+
+    public void clear()
+    {
+        Arrays.fill(kinds, UNSET);
+        Arrays.fill(objects, null);
+        Arrays.fill(updated, false);
+    }
+
+    public void clear(int[] indexes)
+    {
+        for (int index : indexes) {
+            kinds[index] = UNSET;
+            objects[index] = null;
+        }
+    }
+
+    /**
+     * @return true if the column is set since the last clear() or resetUpdated().
+     */
+    public boolean isUpdated(int index)
+    {
+        return updated[index];
+    }
+
+    public void resetUpdated()
+    {
+        Arrays.fill(updated, false);
+    }
+}
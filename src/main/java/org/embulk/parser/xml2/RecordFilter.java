@@ -0,0 +1,299 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.parser.xml2.Xml2ParserPlugin.ColumnOption;
+import org.embulk.parser.xml2.Xml2ParserPlugin.FilterCondition;
+import org.embulk.parser.xml2.Xml2ParserPlugin.FilterOperator;
+import org.embulk.parser.xml2.Xml2ParserPlugin.RepeatMode;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.time.TimestampParser;
+import org.msgpack.value.Value;
+
+/**
+ * Evaluates the filter conditions on the values passed to the RowWriter, so the handler can skip
+ * the rest of a record as soon as a condition fails. A record passes when every value of each
+ * filter column satisfies all its conditions, and the column has a value. null fails any condition.
+ * With several roots, the conditions on the columns of the other roots do not apply to a record.
+ */
+class RecordFilter
+        implements RowWriter
+{
+    private final RowWriter writer;
+    // conditions indexed by column index. null if the column has none.
+    private final Predicate[][] predicates;
+    private final int[] filterColumnIndexes;
+    // roots of filterColumnIndexes. null for record_type_column.
+    private final PathTrie.Node[] filterColumnRoots;
+    private final boolean[] set;
+    private boolean rejected;
+
+    RecordFilter(Predicate[] predicates, Schema schema, PathTrie pathTrie, RowWriter writer)
+    {
+        this.writer = writer;
+        this.predicates = new Predicate[schema.getColumnCount()][];
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (Predicate predicate : predicates) {
+            int index = predicate.column.getIndex();
+            Predicate[] columnPredicates = this.predicates[index];
+            if (columnPredicates == null) {
+                columnPredicates = new Predicate[0];
+                indexes.add(index);
+            }
+            columnPredicates = Arrays.copyOf(columnPredicates, columnPredicates.length + 1);
+            columnPredicates[columnPredicates.length - 1] = predicate;
+            this.predicates[index] = columnPredicates;
+        }
+        this.filterColumnIndexes = new int[indexes.size()];
+        this.filterColumnRoots = new PathTrie.Node[indexes.size()];
+        for (int i = 0; i < filterColumnIndexes.length; i++) {
+            filterColumnIndexes[i] = indexes.get(i);
+            filterColumnRoots[i] = pathTrie.getColumnRoot(indexes.get(i));
+        }
+        this.set = new boolean[schema.getColumnCount()];
+    }
+
+    /**
+     * @return conditions of the filter option. validates them.
+     */
+    public static Predicate[] newPredicates(List<ConfigSource> filter, Schema schema, ColumnOption[] columnOptions,
+            TimestampParser[] timestampParsers)
+    {
+        Predicate[] predicates = new Predicate[filter.size()];
+        for (int i = 0; i < predicates.length; i++) {
+            FilterCondition condition = filter.get(i).loadConfig(FilterCondition.class);
+            Column column = findColumn(schema, condition.getColumn());
+            RepeatMode onRepeat = columnOptions[column.getIndex()].getOnRepeat();
+            if (onRepeat == RepeatMode.ARRAY || onRepeat == RepeatMode.EXPLODE) {
+                throw new ConfigException(String.format("Filter column '%s' must not be on_repeat: %s", column.getName(), onRepeat));
+            }
+            predicates[i] = new Predicate(column, condition.getOperator(),
+                    newOperand(column, condition.getValue(), timestampParsers[column.getIndex()]));
+        }
+        return predicates;
+    }
+
+    private static Column findColumn(Schema schema, String name)
+    {
+        for (Column column : schema.getColumns()) {
+            if (column.getName().equals(name)) {
+                return column;
+            }
+        }
+        throw new ConfigException(String.format("Filter column '%s' is not in the schema", name));
+    }
+
+    private static Comparable<?> newOperand(Column column, final String value, final TimestampParser timestampParser)
+    {
+        final Comparable<?>[] operand = new Comparable<?>[1];
+        final char[] chars = value.toCharArray();
+        try {
+            column.visit(new ColumnVisitor() {
+                @Override
+                public void booleanColumn(Column column)
+                {
+                    operand[0] = CharParsers.parseBoolean(chars, 0, chars.length);
+                }
+
+                @Override
+                public void longColumn(Column column)
+                {
+                    operand[0] = CharParsers.parseLong(chars, 0, chars.length);
+                }
+
+                @Override
+                public void doubleColumn(Column column)
+                {
+                    operand[0] = CharParsers.parseDouble(chars, 0, chars.length);
+                }
+
+                @Override
+                public void stringColumn(Column column)
+                {
+                    operand[0] = value;
+                }
+
+                @Override
+                public void timestampColumn(Column column)
+                {
+                    operand[0] = timestampParser.parse(value);
+                }
+
+                @Override
+                public void jsonColumn(Column column)
+                {
+                    throw new ConfigException(String.format("Filter column '%s' must not be json", column.getName()));
+                }
+            });
+        }
+        catch (NumberFormatException | DataException e) {
+            throw new ConfigException(String.format("Invalid filter value '%s' for column '%s': %s",
+                    value, column.getName(), e.getMessage()));
+        }
+        return operand[0];
+    }
+
+    /**
+     * @return true if a value of the current record failed a condition.
+     */
+    public boolean isRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * @return true if no condition failed and every filter column of the root has a value.
+     */
+    public boolean isAccepted(PathTrie.Node root)
+    {
+        if (rejected) {
+            return false;
+        }
+        for (int i = 0; i < filterColumnIndexes.length; i++) {
+            if (!set[filterColumnIndexes[i]] && (filterColumnRoots[i] == null || filterColumnRoots[i] == root)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts a record.
+     */
+    public void reset()
+    {
+        rejected = false;
+        Arrays.fill(set, false);
+    }
+
+    private void test(Column column, Comparable<?> value)
+    {
+        Predicate[] columnPredicates = predicates[column.getIndex()];
+        if (columnPredicates == null) {
+            return;
+        }
+        set[column.getIndex()] = true;
+        for (Predicate predicate : columnPredicates) {
+            if (value == null || !predicate.test(value)) {
+                rejected = true;
+            }
+        }
+    }
+
+    @Override
+    public void setNull(Column column)
+    {
+        writer.setNull(column);
+        test(column, null);
+    }
+
+    @Override
+    public void setBoolean(Column column, boolean value)
+    {
+        writer.setBoolean(column, value);
+        test(column, value);
+    }
+
+    @Override
+    public void setLong(Column column, long value)
+    {
+        writer.setLong(column, value);
+        test(column, value);
+    }
+
+    @Override
+    public void setDouble(Column column, double value)
+    {
+        writer.setDouble(column, value);
+        test(column, value);
+    }
+
+    @Override
+    public void setString(Column column, String value)
+    {
+        writer.setString(column, value);
+        test(column, value);
+    }
+
+    @Override
+    public void setTimestamp(Column column, Timestamp value)
+    {
+        writer.setTimestamp(column, value);
+        test(column, value);
+    }
+
+    @Override
+    public void setJson(Column column, Value value)
+    {
+        writer.setJson(column, value);
+    }
+
+    static class Predicate
+    {
+        private final Column column;
+        private final FilterOperator operator;
+        private final Comparable<Object> operand;
+
+        @SuppressWarnings("unchecked")
+        Predicate(Column column, FilterOperator operator, Comparable<?> operand)
+        {
+            this.column = column;
+            this.operator = operator;
+            this.operand = (Comparable<Object>) operand;
+        }
+
+        public boolean test(Object value)
+        {
+            // the value is of the same type as the operand, which is converted for the column type.
+            int cmp = -Integer.signum(operand.compareTo(value));
+            switch (operator) {
+            case EQ:
+                return cmp == 0;
+            case NE:
+                return cmp != 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            default:
+                throw new AssertionError();
+            }
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.parser.xml2.Xml2ParserPlugin.ColumnOption;
+import org.embulk.parser.xml2.Xml2ParserPlugin.InvalidValueAction;
+import org.embulk.parser.xml2.Xml2ParserPlugin.OversizedValueAction;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.parser.xml2.Xml2ParserPlugin.RepeatMode;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.TimestampParser;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.slf4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Walks the compiled PathTrie on element events and sets the text of matched elements
+ * to the PageBuilder. One record is added at the end of each root element, or at the end
+ * of each explode element when a column is on_repeat: explode. With several roots, the columns
+ * of the other roots are left null. Once a filter condition fails, the rest of the record is
+ * skipped like an unmatched subtree.
+ * Every ParserEngine drives this handler through the SAX callbacks.
+ */
+class RecordHandler
+        extends DefaultHandler
+{
+    private final PathTrie pathTrie;
+    private final ColumnSetter[] setters;
+    private final PageBuilder pageBuilder;
+    private final ParserMetrics metrics;
+    private final ColumnOption[] columnOptions;
+    // on_repeat options resolved per column index.
+    private final boolean[] keepFirst;
+    private final boolean[] seen;
+    private final List<List<Value>> arrays;
+    // max_value_size options resolved per column index. Integer.MAX_VALUE if no limit.
+    private final int[] maxValueSizes;
+    private final OversizedValueAction[] onOversizedValue;
+    // holds the row while exploding, so the parent fields are copied into each row, or until the record
+    // turns out to be valid with stop_on_invalid_record: false or to pass the filter. null if none of them.
+    private final RecordBuffer rowBuffer;
+    // null if no filter.
+    private final RecordFilter filter;
+    // null if no record_type_column.
+    private final ColumnSetter recordTypeSetter;
+    private final int[] explodeColumnIndexes;
+    private final boolean[] isExplodeColumn;
+    private int explodedRows;
+    // columns warned to be set after the exploded rows of a record were added.
+    private final boolean[] warnedLateExplodeValue;
+    private final boolean stopOnInvalidRecord;
+    private final boolean setNullOnInvalidValue;
+    private final SkippedRecordCounter skippedRecords;
+    // reason to skip the current record, or the current exploded row.
+    private String invalidRecordReason;
+    private String invalidRowReason;
+    // root elements ended in the document.
+    private int completedRecords;
+    // pages are flushed when they are full, or after these records or nanoseconds if positive.
+    private final int flushRecords;
+    private final long flushIntervalNanos;
+    private int unflushedRecords;
+    private long lastFlushNanos;
+    private final Logger logger = Exec.getLogger(RecordHandler.class);
+
+    private PathTrie.Node[] nodeStack = new PathTrie.Node[16];
+    private int depth;
+    // root element of the current record.
+    private PathTrie.Node currentRoot;
+    // depth of elements below the last matched node. they are on no root/column path.
+    private int unmatchedDepth;
+    private boolean isElementMatch = false;
+    // reused for all values in the document.
+    private char[] valueBuf = new char[256];
+    private int valueLength = 0;
+    // true if the texts of the current value exceeded max_value_size. the rest is not accumulated.
+    private boolean valueOversized = false;
+    private Column currentColumn = null;
+    // builds the subtree of a json column.
+    private final JsonSubtreeBuilder jsonBuilder = new JsonSubtreeBuilder();
+
+    RecordHandler(PluginTask task, PathTrie pathTrie, Schema schema, TimestampParser[] timestampParsers,
+            ColumnOption[] columnOptions, PageBuilder pageBuilder, ParserMetrics metrics, SkippedRecordCounter skippedRecords)
+    {
+        this.pathTrie = pathTrie;
+        this.columnOptions = columnOptions;
+        this.pageBuilder = pageBuilder;
+        this.metrics = metrics;
+        this.skippedRecords = skippedRecords;
+        this.stopOnInvalidRecord = task.getStopOnInvalidRecord();
+        this.setNullOnInvalidValue = task.getOnInvalidValue() == InvalidValueAction.SET_NULL;
+        this.flushRecords = task.getPageFlushRecords().or(0);
+        this.flushIntervalNanos = TimeUnit.SECONDS.toNanos(task.getPageFlushInterval().or(0));
+        this.lastFlushNanos = System.nanoTime();
+        this.explodeColumnIndexes = pathTrie.getExplodeColumnIndexes();
+        this.isExplodeColumn = new boolean[columnOptions.length];
+        this.warnedLateExplodeValue = new boolean[columnOptions.length];
+        for (int index : explodeColumnIndexes) {
+            isExplodeColumn[index] = true;
+        }
+        RecordFilter.Predicate[] predicates = RecordFilter.newPredicates(task.getFilter(), schema, columnOptions,
+                timestampParsers);
+        RowWriter writer;
+        if (explodeColumnIndexes.length > 0 || !stopOnInvalidRecord || predicates.length > 0) {
+            rowBuffer = new RecordBuffer(schema);
+            writer = rowBuffer;
+        }
+        else {
+            rowBuffer = null;
+            writer = new RowWriter.PageBuilderRowWriter(pageBuilder);
+        }
+        if (predicates.length > 0) {
+            filter = new RecordFilter(predicates, schema, pathTrie, writer);
+            writer = filter;
+        }
+        else {
+            filter = null;
+        }
+        this.setters = ColumnSetter.newColumnSetters(writer, schema,
+                FastTimestampParser.newFastTimestampParsers(task, timestampParsers));
+        Column recordTypeColumn = pathTrie.getRecordTypeColumn();
+        this.recordTypeSetter = recordTypeColumn == null ? null : setters[recordTypeColumn.getIndex()];
+
+        this.keepFirst = new boolean[columnOptions.length];
+        this.seen = new boolean[columnOptions.length];
+        this.arrays = new ArrayList<List<Value>>(columnOptions.length);
+        this.maxValueSizes = new int[columnOptions.length];
+        this.onOversizedValue = new OversizedValueAction[columnOptions.length];
+        for (int i = 0; i < columnOptions.length; i++) {
+            RepeatMode onRepeat = columnOptions[i].getOnRepeat();
+            keepFirst[i] = onRepeat == RepeatMode.FIRST;
+            arrays.add(onRepeat == RepeatMode.ARRAY ? new ArrayList<Value>() : null);
+            maxValueSizes[i] = columnOptions[i].getMaxValueSize().or(Integer.MAX_VALUE);
+            onOversizedValue[i] = columnOptions[i].getOnOversizedValue();
+        }
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        nodeStack[0] = pathTrie.getTop();
+        depth = 0;
+        unmatchedDepth = 0;
+        isElementMatch = false;
+        completedRecords = 0;
+        if (filter != null) {
+            filter.reset();
+        }
+        logger.debug("start parsing document.");
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        metrics.element();
+        if (jsonBuilder.isActive()) {
+            jsonBuilder.startElement(qName, attributes);
+        }
+        if (unmatchedDepth > 0) {
+            unmatchedDepth++;
+            return;
+        }
+        PathTrie.Node node = nodeStack[depth].getChild(qName);
+        if (node == null || isFilteredOut()) {
+            unmatchedDepth = 1;
+            metrics.skippedSubtree();
+            return;
+        }
+        if (++depth == nodeStack.length) {
+            nodeStack = Arrays.copyOf(nodeStack, depth * 2);
+        }
+        nodeStack[depth] = node;
+        if (node.isRoot()) {
+            Arrays.fill(seen, false);
+            explodedRows = 0;
+            invalidRecordReason = null;
+            invalidRowReason = null;
+            if (rowBuffer != null) {
+                // the previous record may have been broken by malformed markup.
+                rowBuffer.clear();
+            }
+            if (filter != null) {
+                filter.reset();
+            }
+            currentRoot = node;
+            if (recordTypeSetter != null) {
+                recordTypeSetter.set(node.getRecordType());
+            }
+        }
+        else if (node.isExplode()) {
+            for (int index : explodeColumnIndexes) {
+                seen[index] = false;
+            }
+        }
+
+        String[] attributeNames = node.getAttributeNames();
+        if (attributeNames.length > 0) {
+            Column[] attributeColumns = node.getAttributeColumns();
+            for (int i = 0; i < attributeNames.length; i++) {
+                String value = attributes.getValue(attributeNames[i]);
+                if (value != null && accept(attributeColumns[i])) {
+                    int index = attributeColumns[i].getIndex();
+                    if (arrays.get(index) != null) {
+                        arrays.get(index).add(ValueFactory.newString(value));
+                    }
+                    else if (value.length() <= maxValueSizes[index]) {
+                        try {
+                            setters[index].set(value);
+                        }
+                        catch (NumberFormatException | DataException e) {
+                            invalidValue(attributeColumns[i], value, e);
+                        }
+                    }
+                    else if (acceptOversizedValue(attributeColumns[i], value)) {
+                        char[] buf = value.toCharArray();
+                        setValue(attributeColumns[i], buf, truncatedLength(buf, 0, maxValueSizes[index]));
+                    }
+                }
+            }
+        }
+
+        Column column = node.getColumn();
+        if (column == null || isFilteredOut() || !accept(column)) {
+            return;
+        }
+        if (setters[column.getIndex()] instanceof ColumnSetter.JsonColumnSetter) {
+            // a json column nested in another json column is a part of the outer value.
+            if (!jsonBuilder.isActive()) {
+                jsonBuilder.begin(column, columnOptions[column.getIndex()].getMaxJsonSize(), qName, attributes);
+            }
+            return;
+        }
+        currentColumn = column;
+        isElementMatch = true;
+        valueLength = 0;
+        valueOversized = false;
+    }
+
+    /**
+     * @return false if the value of the column is ignored because it is on_repeat: first and already set.
+     */
+    private boolean accept(Column column)
+    {
+        int index = column.getIndex();
+        if (keepFirst[index]) {
+            if (seen[index]) {
+                return false;
+            }
+            seen[index] = true;
+        }
+        metrics.value(column);
+        return true;
+    }
+
+    private void setValue(Column column, char[] buf, int length)
+    {
+        try {
+            setters[column.getIndex()].set(buf, 0, length);
+        }
+        catch (NumberFormatException | DataException e) {
+            invalidValue(column, new String(buf, 0, length), e);
+        }
+    }
+
+    /**
+     * Applies on_oversized_value to a value longer than max_value_size.
+     * @return true if the value is set truncated to max_value_size.
+     */
+    private boolean acceptOversizedValue(Column column, String head)
+    {
+        int index = column.getIndex();
+        switch (onOversizedValue[index]) {
+        case TRUNCATE:
+            return true;
+        case NULL:
+            setters[index].getWriter().setNull(column);
+            return false;
+        case ERROR:
+        default:
+            invalidValue(column, head.substring(0, Math.min(head.length(), 64)) + "...", new DataException(
+                    String.format("Value of column '%s' exceeds max_value_size (%d)", column.getName(), maxValueSizes[index])));
+            return false;
+        }
+    }
+
+    /**
+     * @return the length of a value cut at the given length, without splitting a surrogate pair.
+     */
+    private static int truncatedLength(char[] buf, int offset, int length)
+    {
+        if (length > 0 && Character.isHighSurrogate(buf[offset + length - 1])) {
+            return length - 1;
+        }
+        return length;
+    }
+
+    private boolean isFilteredOut()
+    {
+        return filter != null && filter.isRejected();
+    }
+
+    private void invalidValue(Column column, String value, RuntimeException e)
+    {
+        metrics.conversionError();
+        if (stopOnInvalidRecord) {
+            throw e;
+        }
+        String reason = String.format("invalid value '%s' for column '%s': %s", value, column.getName(), e.getMessage());
+        if (setNullOnInvalidValue) {
+            logger.warn(String.format("Set null to an %s", reason));
+            setters[column.getIndex()].getWriter().setNull(column);
+        }
+        else if (isExplodeColumn[column.getIndex()]) {
+            invalidRowReason = reason;
+        }
+        else {
+            invalidRecordReason = reason;
+        }
+    }
+
+    /**
+     * Skips a record with stop_on_invalid_record: false.
+     */
+    public void skipRecord(String reason)
+    {
+        metrics.skippedRecord();
+        skippedRecords.skip(reason);
+    }
+
+    /**
+     * @return number of the root elements ended since the start of the document.
+     */
+    public int getCompletedRecords()
+    {
+        return completedRecords;
+    }
+
+    /**
+     * @return true if no column can match in the subtree of the element just started.
+     */
+    public boolean isSkippingSubtree()
+    {
+        return unmatchedDepth == 1 && !isElementMatch && !jsonBuilder.isActive();
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (jsonBuilder.isActive()) {
+            Column jsonColumn = jsonBuilder.getColumn();
+            if (jsonBuilder.endElement()) {
+                List<Value> array = arrays.get(jsonColumn.getIndex());
+                if (jsonBuilder.isOversized()) {
+                    // handled like a value which can not be converted, e.g. skips the record.
+                    invalidValue(jsonColumn, "<" + qName + ">", new DataException(String.format(
+                            "Value of json column '%s' exceeds max_json_size (%d)", jsonColumn.getName(), jsonBuilder.getMaxSize())));
+                }
+                else if (array != null) {
+                    array.add(jsonBuilder.getResult());
+                }
+                else {
+                    ((ColumnSetter.JsonColumnSetter) setters[jsonColumn.getIndex()]).set(jsonBuilder.getResult());
+                }
+            }
+        }
+        if (unmatchedDepth > 0) {
+            unmatchedDepth--;
+            return;
+        }
+        PathTrie.Node node = nodeStack[depth--];
+
+        // if isElementMatch is true, set data to Page.
+        if (isElementMatch) {
+            if (!valueOversized || acceptOversizedValue(currentColumn, new String(valueBuf, 0, Math.min(valueLength, 64)))) {
+                setValue(currentColumn, valueBuf, valueLength);
+            }
+        }
+        isElementMatch = false;
+        valueLength = 0;
+        valueOversized = false;
+        currentColumn = null;
+
+        if (isFilteredOut()) {
+            if (node.isRoot()) {
+                completedRecords++;
+                endFilteredRecord();
+            }
+            return;
+        }
+
+        for (Column arrayColumn : node.getArrayColumns()) {
+            List<Value> array = arrays.get(arrayColumn.getIndex());
+            if (!array.isEmpty()) {
+                ((ColumnSetter.JsonColumnSetter) setters[arrayColumn.getIndex()]).set(ValueFactory.newArray(new ArrayList<Value>(array)));
+                array.clear();
+            }
+        }
+
+        if (node.isExplode()) {
+            // one row per explode element. the parent fields read so far are kept for the next row.
+            if (invalidRowReason != null) {
+                if (invalidRecordReason == null) {
+                    skipRecord(invalidRowReason);
+                }
+            }
+            else if (filter != null && !filter.isAccepted(currentRoot)) {
+                // a filter column without a value.
+                metrics.filteredRecord();
+            }
+            else if (invalidRecordReason == null) {
+                rowBuffer.writeTo(pageBuilder);
+                addRecord();
+            }
+            rowBuffer.clear(explodeColumnIndexes);
+            rowBuffer.resetUpdated();
+            invalidRowReason = null;
+            explodedRows++;
+        }
+        else if (node.isRoot()) {
+            completedRecords++;
+            if (filter != null && !filter.isAccepted(currentRoot)) {
+                endFilteredRecord();
+                return;
+            }
+            if (invalidRecordReason != null) {
+                skipRecord(invalidRecordReason);
+            }
+            else if (rowBuffer == null) {
+                addRecord();
+            }
+            else if (explodedRows == 0) {
+                // a record without explode elements is added as one row.
+                rowBuffer.writeTo(pageBuilder);
+                addRecord();
+            }
+            else {
+                checkLateExplodeValues();
+            }
+            if (rowBuffer != null) {
+                rowBuffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Counts the values set after the last exploded row of the record, which are in none of the rows.
+     */
+    private void checkLateExplodeValues()
+    {
+        for (int i = 0; i < warnedLateExplodeValue.length; i++) {
+            if (rowBuffer.isUpdated(i)) {
+                metrics.lateExplodeValue();
+                if (!warnedLateExplodeValue[i]) {
+                    warnedLateExplodeValue[i] = true;
+                    logger.warn(String.format("Value of column '%s' appears after the explode elements of a record, so it is"
+                            + " not in the exploded rows. It must appear before them to be copied into each row",
+                            setters[i].getColumn().getName()));
+                }
+            }
+        }
+    }
+
+    private void endFilteredRecord()
+    {
+        if (explodedRows == 0) {
+            metrics.filteredRecord();
+        }
+        for (List<Value> array : arrays) {
+            if (array != null) {
+                array.clear();
+            }
+        }
+        rowBuffer.clear();
+        filter.reset();
+    }
+
+    private void addRecord()
+    {
+        long start = System.nanoTime();
+        pageBuilder.addRecord();
+        long end = System.nanoTime();
+        metrics.record();
+        if (flushRecords > 0 || flushIntervalNanos > 0) {
+            unflushedRecords++;
+            if ((flushRecords > 0 && unflushedRecords >= flushRecords)
+                    || (flushIntervalNanos > 0 && end - lastFlushNanos >= flushIntervalNanos)) {
+                pageBuilder.flush();
+                unflushedRecords = 0;
+                lastFlushNanos = System.nanoTime();
+                end = lastFlushNanos;
+            }
+        }
+        metrics.addPageBuilderNanos(end - start);
+    }
+
+    @Override
+    public void characters(char[] ch, int offset, int length) {
+        if (jsonBuilder.isActive()) {
+            jsonBuilder.characters(ch, offset, length);
+        }
+        if (!isElementMatch) {
+            return;
+        }
+        if (valueOversized) {
+            return;
+        }
+        int maxValueSize = maxValueSizes[currentColumn.getIndex()];
+        if (length > maxValueSize - valueLength) {
+            // keeps the value up to max_value_size, so an oversized value costs no more memory.
+            length = truncatedLength(ch, offset, maxValueSize - valueLength);
+            valueOversized = true;
+        }
+        if (valueLength + length > valueBuf.length) {
+            valueBuf = Arrays.copyOf(valueBuf, Math.min(Math.max(valueBuf.length * 2, valueLength + length), maxValueSize));
+        }
+        System.arraycopy(ch, offset, valueBuf, valueLength, length);
+        valueLength += length;
+    }
+
+    /**
+     * The page is not flushed per document, so the records of many small files share pages.
+     * The caller finishes the PageBuilder after the last document.
+     */
+    @Override
+    public void endDocument() {
+        logger.debug("end parsing document. total extracted record count is : " + metrics.getRecords());
+    }
+}
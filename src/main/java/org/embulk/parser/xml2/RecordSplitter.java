@@ -0,0 +1,699 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+
+/**
+ * Cuts a raw XML byte stream into chunks of whole root elements without parsing it.
+ * Each chunk is a well-formed document by itself: it starts with the XML declaration,
+ * the DOCTYPE and the start tags of the enclosing elements as they are in the input,
+ * so namespace and prefix declarations of the enclosing elements stay in scope.
+ * The input must be in an ASCII compatible encoding such as UTF-8.
+ * In lenient mode, a start tag of the record element in a record ends the record, so
+ * a record whose end tag is missing does not swallow the following records. It also cuts
+ * a valid record which contains elements of the same name, so it is used only for a record
+ * which the parser failed on.
+ * Records which start before skipBefore are skipped without being copied, while the
+ * enclosing elements are still tracked.
+ */
+class RecordSplitter
+{
+    static class Chunk
+    {
+        private final byte[] data;
+        private final int length;
+        private final int recordCount;
+        private final long startOffset;
+        private final long endOffset;
+
+        Chunk(byte[] data, int length, int recordCount, long startOffset, long endOffset)
+        {
+            this.data = data;
+            this.length = length;
+            this.recordCount = recordCount;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public int getLength()
+        {
+            return length;
+        }
+
+        public int getRecordCount()
+        {
+            return recordCount;
+        }
+
+        /**
+         * @return byte offset of the first root element in the input.
+         */
+        public long getStartOffset()
+        {
+            return startOffset;
+        }
+
+        /**
+         * @return byte offset next to the end of the last root element in the input.
+         */
+        public long getEndOffset()
+        {
+            return endOffset;
+        }
+    }
+
+    static class ByteArray
+    {
+        private byte[] bytes;
+        private int length = 0;
+
+        ByteArray(int capacity)
+        {
+            bytes = new byte[capacity];
+        }
+
+        public void append(byte[] src, int offset, int len)
+        {
+            if (length + len > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + len));
+            }
+            System.arraycopy(src, offset, bytes, length, len);
+            length += len;
+        }
+
+        public void append(byte[] src)
+        {
+            append(src, 0, src.length);
+        }
+
+        public void reset()
+        {
+            length = 0;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+
+        public byte[] array()
+        {
+            return bytes;
+        }
+
+        public byte[] toByteArray()
+        {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        public void truncate(int newLength)
+        {
+            length = newLength;
+        }
+    }
+
+    /**
+     * FileInput of a single file which consists of a chunk.
+     */
+    static class ChunkFileInput
+            implements FileInput
+    {
+        private final Chunk chunk;
+        private boolean opened = false;
+        private boolean polled = false;
+
+        ChunkFileInput(Chunk chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public boolean nextFile()
+        {
+            if (opened) {
+                return false;
+            }
+            opened = true;
+            return true;
+        }
+
+        @Override
+        public Buffer poll()
+        {
+            if (polled) {
+                return null;
+            }
+            polled = true;
+            return Buffer.wrap(chunk.getData(), 0, chunk.getLength());
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private static final int READ_SIZE = 64 * 1024;
+    // a chunk grows from this size, so a splitter of a small file does not allocate a full chunk.
+    private static final int INITIAL_CHUNK_CAPACITY = 64 * 1024;
+    private static final int HEAD_SIZE = 4096;
+
+    private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final byte[][] path;
+    private final int chunkSize;
+    private final boolean lenient;
+    private final long skipBefore;
+
+    private final byte[] buf = new byte[READ_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    // offset of buf[0] in the input.
+    private long bufferBase = 0;
+    // checksum of the head of the input, which identifies the file in a checkpoint.
+    private final CRC32 head = new CRC32();
+    private int headLength = 0;
+
+    // bytes from buf[mark] are copied to the target when buf is refilled.
+    private ByteArray target = null;
+    private int mark = -1;
+
+    private final ByteArray tagBuf = new ByteArray(256);
+    private byte[] nameBuf = new byte[64];
+    private int nameLength = 0;
+
+    private final ByteArray prologue = new ByteArray(256);
+    private boolean seenElement = false;
+
+    private int depth = 0;
+    // open elements at depth 1..pathDepth are the elements of the root path.
+    private int pathDepth = 0;
+    private boolean inRecord = false;
+    // the current record is before skipBefore.
+    private boolean skippingRecord = false;
+    private final List<byte[]> ancestorTags = new ArrayList<byte[]>();
+    private final List<byte[]> ancestorNames = new ArrayList<byte[]>();
+    private int contextVersion = 0;
+
+    private ByteArray chunk = null;
+    private byte[] chunkFooter;
+    private int chunkContextVersion;
+    private int chunkRecordCount;
+    private long chunkStartOffset;
+    private long chunkEndOffset;
+    private Chunk ready = null;
+
+    RecordSplitter(InputStream in, String rootPath, int chunkSize)
+    {
+        this(in, rootPath, chunkSize, false, 0);
+    }
+
+    RecordSplitter(InputStream in, String rootPath, int chunkSize, boolean lenient, long skipBefore)
+    {
+        this.lenient = lenient;
+        this.skipBefore = skipBefore;
+        this.in = in;
+        String[] names = rootPath.split("/");
+        this.path = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            path[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return next chunk, or null at the end of the input.
+     */
+    public Chunk next() throws IOException
+    {
+        while (ready == null) {
+            if (!skipText()) {
+                if (chunk != null) {
+                    // if the input ends in a record, the partial record is passed to the parser as is,
+                    // so that the parser reports the error.
+                    if (inRecord) {
+                        chunkEndOffset = bufferBase + pos;
+                    }
+                    inRecord = false;
+                    mark = -1;
+                    finishChunk();
+                }
+                break;
+            }
+            readMarkup();
+        }
+        Chunk next = ready;
+        ready = null;
+        return next;
+    }
+
+    /**
+     * @return number of bytes at the head of the input read so far, up to 4096.
+     */
+    public int getHeadLength()
+    {
+        return headLength;
+    }
+
+    /**
+     * @return CRC32 of the bytes at the head of the input read so far.
+     */
+    public long getHeadChecksum()
+    {
+        return head.getValue();
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (mark >= 0) {
+            target.append(buf, mark, limit - mark);
+            mark = 0;
+        }
+        bufferBase += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        limit = n;
+        if (headLength < HEAD_SIZE) {
+            int length = Math.min(n, HEAD_SIZE - headLength);
+            head.update(buf, 0, length);
+            headLength += length;
+        }
+        return true;
+    }
+
+    private int read() throws IOException
+    {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    /**
+     * Skips to the next '&lt;'.
+     * @return false at the end of the input.
+     */
+    private boolean skipText() throws IOException
+    {
+        while (true) {
+            int i = pos;
+            int end = limit;
+            byte[] b = buf;
+            while (i < end) {
+                if (b[i] == '<') {
+                    pos = i;
+                    return true;
+                }
+                i++;
+            }
+            pos = end;
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    private void readMarkup() throws IOException
+    {
+        long markupOffset = bufferBase + pos;
+        if (!inRecord) {
+            tagBuf.reset();
+            target = tagBuf;
+            mark = pos;
+        }
+        pos++; // '<'
+
+        int c = read();
+        switch (c) {
+        case -1:
+            break;
+        case '?':
+            skipUntil(PI_END);
+            if (!inRecord && markupOffset == 0) {
+                // XML declaration
+                finishCapture();
+                prologue.append(tagBuf.array(), 0, tagBuf.length());
+            }
+            break;
+        case '!':
+            readDeclaration();
+            break;
+        case '/':
+            readEndTag();
+            break;
+        default:
+            readStartTag(c, markupOffset);
+            break;
+        }
+        if (!inRecord) {
+            mark = -1;
+        }
+    }
+
+    private void readDeclaration() throws IOException
+    {
+        int c = read();
+        if (c == '-') {
+            skipUntil(COMMENT_END);
+            return;
+        }
+        if (c == '[') {
+            skipUntil(CDATA_END);
+            return;
+        }
+        // DOCTYPE. it may have an internal subset in [].
+        int bracket = 0;
+        int quote = 0;
+        while (c >= 0) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (c == '"' || c == '\'') {
+                quote = c;
+            }
+            else if (c == '[') {
+                bracket++;
+            }
+            else if (c == ']') {
+                bracket--;
+            }
+            else if (c == '>' && bracket <= 0) {
+                break;
+            }
+            c = read();
+        }
+        if (!inRecord && !seenElement) {
+            finishCapture();
+            prologue.append(tagBuf.array(), 0, tagBuf.length());
+        }
+    }
+
+    private void readStartTag(int first, long markupOffset) throws IOException
+    {
+        int c = readName(first);
+        boolean selfClosing = false;
+        if (c != '>') {
+            selfClosing = skipTagRest(c);
+        }
+        seenElement = true;
+
+        boolean tagKept = true;
+        if (lenient && inRecord && isName(path[path.length - 1])) {
+            tagKept = breakRecord(markupOffset);
+        }
+        boolean onPath = depth == pathDepth && pathDepth < path.length && isName(path[pathDepth]);
+        if (!selfClosing) {
+            depth++;
+        }
+        if (!onPath) {
+            return;
+        }
+
+        finishCapture();
+        if (pathDepth + 1 < path.length) {
+            // enclosing element of records.
+            if (!selfClosing) {
+                pathDepth++;
+                ancestorTags.add(tagBuf.toByteArray());
+                ancestorNames.add(Arrays.copyOf(nameBuf, nameLength));
+                contextVersion++;
+            }
+            return;
+        }
+
+        // start of a record.
+        if (markupOffset < skipBefore || !tagKept) {
+            if (!selfClosing) {
+                pathDepth++;
+                inRecord = true;
+                skippingRecord = true;
+            }
+            return;
+        }
+        if (chunk != null && chunkContextVersion != contextVersion) {
+            finishChunk();
+        }
+        if (chunk == null) {
+            beginChunk(markupOffset);
+        }
+        chunk.append(tagBuf.array(), 0, tagBuf.length());
+        if (selfClosing) {
+            endRecord();
+        }
+        else {
+            pathDepth++;
+            inRecord = true;
+            target = chunk;
+            mark = pos;
+        }
+    }
+
+    private void readEndTag() throws IOException
+    {
+        int c = read();
+        if (c < 0) {
+            return;
+        }
+        c = readName(c);
+        while (c >= 0 && c != '>') {
+            c = read();
+        }
+
+        if (depth > 0 && depth == pathDepth) {
+            pathDepth--;
+            if (skippingRecord) {
+                inRecord = false;
+                skippingRecord = false;
+            }
+            else if (inRecord) {
+                chunk.append(buf, mark, pos - mark);
+                mark = -1;
+                inRecord = false;
+                endRecord();
+            }
+            else {
+                ancestorTags.remove(ancestorTags.size() - 1);
+                ancestorNames.remove(ancestorNames.size() - 1);
+                contextVersion++;
+            }
+        }
+        depth--;
+    }
+
+    /**
+     * Reads an element name into nameBuf.
+     * @return the byte next to the name.
+     */
+    private int readName(int first) throws IOException
+    {
+        nameLength = 0;
+        int c = first;
+        while (c >= 0 && c != '>' && c != '/' && !isWhitespace(c)) {
+            if (nameLength == nameBuf.length) {
+                nameBuf = Arrays.copyOf(nameBuf, nameLength * 2);
+            }
+            nameBuf[nameLength++] = (byte) c;
+            c = read();
+        }
+        return c;
+    }
+
+    /**
+     * Skips attributes to the end of a start tag.
+     * @return true if the tag is an empty element tag.
+     */
+    private boolean skipTagRest(int c) throws IOException
+    {
+        int quote = 0;
+        int last = c;
+        while (c >= 0) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (c == '"' || c == '\'') {
+                quote = c;
+            }
+            else if (c == '>') {
+                return last == '/';
+            }
+            else if (!isWhitespace(c)) {
+                last = c;
+            }
+            c = read();
+        }
+        return false;
+    }
+
+    private void skipUntil(byte[] terminator) throws IOException
+    {
+        int n = terminator.length;
+        int matched = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == terminator[matched]) {
+                if (++matched == n) {
+                    return;
+                }
+            }
+            else if (matched > 0) {
+                // terminators repeat their first byte only, e.g. "--->" or "]]]>".
+                if (c != terminator[0]) {
+                    matched = 0;
+                }
+                else if (terminator[matched - 1] != terminator[0]) {
+                    matched = 1;
+                }
+            }
+        }
+    }
+
+    private boolean isName(byte[] name)
+    {
+        if (name.length != nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != nameBuf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void finishCapture()
+    {
+        if (mark >= 0 && target == tagBuf) {
+            tagBuf.append(buf, mark, pos - mark);
+            mark = -1;
+        }
+    }
+
+    private void beginChunk(long startOffset)
+    {
+        chunk = new ByteArray(Math.min(chunkSize + chunkSize / 4, INITIAL_CHUNK_CAPACITY));
+        chunk.append(prologue.array(), 0, prologue.length());
+        ByteArray footer = new ByteArray(64);
+        for (int i = 0; i < ancestorTags.size(); i++) {
+            chunk.append(ancestorTags.get(i));
+        }
+        for (int i = ancestorNames.size() - 1; i >= 0; i--) {
+            footer.append(new byte[] {'<', '/'});
+            footer.append(ancestorNames.get(i));
+            footer.append(new byte[] {'>'});
+        }
+        chunkFooter = footer.toByteArray();
+        chunkContextVersion = contextVersion;
+        chunkRecordCount = 0;
+        chunkStartOffset = startOffset;
+    }
+
+    /**
+     * Ends the current record before the start tag at tagOffset, and moves the tag to tagBuf.
+     * the record is passed to the parser as is, so that the parser reports the error.
+     * @return false if the tag is not kept because the current record is skipped and the tag
+     * starts in the previous buffer. the record of the tag is skipped too.
+     */
+    private boolean breakRecord(long tagOffset)
+    {
+        tagBuf.reset();
+        pathDepth = path.length - 1;
+        depth = pathDepth;
+        if (skippingRecord) {
+            inRecord = false;
+            skippingRecord = false;
+            if (tagOffset < bufferBase) {
+                return false;
+            }
+            tagBuf.append(buf, (int) (tagOffset - bufferBase), (int) (bufferBase + pos - tagOffset));
+            return true;
+        }
+        // the input before bufferBase + mark is already in the chunk.
+        int tagInChunk = (int) (bufferBase + mark - tagOffset);
+        int tagInBuf = (int) (tagOffset - bufferBase);
+        if (tagInChunk > 0) {
+            tagBuf.append(chunk.array(), chunk.length() - tagInChunk, tagInChunk);
+            chunk.truncate(chunk.length() - tagInChunk);
+            tagInBuf = mark;
+        }
+        else {
+            chunk.append(buf, mark, tagInBuf - mark);
+        }
+        tagBuf.append(buf, tagInBuf, pos - tagInBuf);
+        mark = -1;
+        inRecord = false;
+        endRecord();
+        return true;
+    }
+
+    private void endRecord()
+    {
+        chunkRecordCount++;
+        chunkEndOffset = bufferBase + pos;
+        if (chunk.length() >= chunkSize) {
+            finishChunk();
+        }
+    }
+
+    private void finishChunk()
+    {
+        chunk.append(chunkFooter);
+        ready = new Chunk(chunk.array(), chunk.length(), chunkRecordCount, chunkStartOffset, chunkEndOffset);
+        chunk = null;
+    }
+
+    private static boolean isWhitespace(int c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.time.Timestamp;
+import org.msgpack.value.Value;
+
+/**
+ * Destination of converted column values. ColumnSetter writes values either directly
+ * to the PageBuilder, or to a RecordBuffer when a record has to be held before it is added.
+ */
+interface RowWriter
+{
+    void setNull(Column column);
+
+    void setBoolean(Column column, boolean value);
+
+    void setLong(Column column, long value);
+
+    void setDouble(Column column, double value);
+
+    void setString(Column column, String value);
+
+    void setTimestamp(Column column, Timestamp value);
+
+    void setJson(Column column, Value value);
+
+    class PageBuilderRowWriter
+            implements RowWriter
+    {
+        private final PageBuilder pageBuilder;
+
+        PageBuilderRowWriter(PageBuilder pageBuilder)
+        {
+            this.pageBuilder = pageBuilder;
+        }
+
+        @Override
+        public void setNull(Column column)
+        {
+            pageBuilder.setNull(column);
+        }
+
+        @Override
+        public void setBoolean(Column column, boolean value)
+        {
+            pageBuilder.setBoolean(column, value);
+        }
+
+        @Override
+        public void setLong(Column column, long value)
+        {
+            pageBuilder.setLong(column, value);
+        }
+
+        @Override
+        public void setDouble(Column column, double value)
+        {
+            pageBuilder.setDouble(column, value);
+        }
+
+        @Override
+        public void setString(Column column, String value)
+        {
+            pageBuilder.setString(column, value);
+        }
+
+        @Override
+        public void setTimestamp(Column column, Timestamp value)
+        {
+            pageBuilder.setTimestamp(column, value);
+        }
+
+        @Override
+        public void setJson(Column column, Value value)
+        {
+            pageBuilder.setJson(column, value);
+        }
+    }
+}
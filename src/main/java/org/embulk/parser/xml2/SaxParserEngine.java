@@ -0,0 +1,153 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.FactoryConfigurationError;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.embulk.config.ConfigException;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileInput;
+import org.embulk.spi.util.FileInputInputStream;
+import org.slf4j.Logger;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+
+/**
+ * Push parser of the JAXP implementation found on the classpath, or of sax_parser_factory.
+ * The parser is created once and reset after each file. The input is closed after the last file.
+ */
+class SaxParserEngine
+        extends ParserEngine
+{
+    private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+    private static final String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+    private static final String INPUT_BUFFER_SIZE = "http://apache.org/xml/properties/input-buffer-size";
+
+    private final SAXParser parser;
+    // reset() drops the properties set to the parser, so they are set again after it.
+    private final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    private final Logger logger = Exec.getLogger(SaxParserEngine.class);
+
+    SaxParserEngine(PluginTask task)
+    {
+        if (task.getEntityExpansionLimit().isPresent()) {
+            properties.put(ENTITY_EXPANSION_LIMIT, task.getEntityExpansionLimit().get());
+        }
+        if (task.getTotalEntitySizeLimit().isPresent()) {
+            properties.put(TOTAL_ENTITY_SIZE_LIMIT, task.getTotalEntitySizeLimit().get());
+        }
+        if (task.getInputBufferSize().isPresent()) {
+            properties.put(INPUT_BUFFER_SIZE, task.getInputBufferSize().get());
+        }
+        this.parser = createXMLParser(task);
+        Iterator<Map.Entry<String, Object>> it = properties.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Object> property = it.next();
+            try {
+                parser.setProperty(property.getKey(), property.getValue());
+            }
+            catch (SAXNotRecognizedException | SAXNotSupportedException e) {
+                logger.warn(String.format("Property %s is not supported by %s", property.getKey(), parser.getClass().getName()));
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void parse(FileInput input, RecordHandler handler) throws IOException, SAXException
+    {
+        try (FileInputInputStream is = new FileInputInputStream(input)) {
+            // the parser closes the stream at the end of each document, which would close the input.
+            InputStream document = new FilterInputStream(is) {
+                @Override
+                public void close()
+                {
+                }
+            };
+            while (is.nextFile()) {
+                try {
+                    parser.parse(document, handler);
+                }
+                finally {
+                    parser.reset();
+                    for (Map.Entry<String, Object> property : properties.entrySet()) {
+                        parser.setProperty(property.getKey(), property.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private SAXParser createXMLParser(PluginTask task)
+    {
+        SAXParserFactory factory;
+        try {
+            if (task.getSaxParserFactory().isPresent()) {
+                factory = SAXParserFactory.newInstance(task.getSaxParserFactory().get(), SaxParserEngine.class.getClassLoader());
+            }
+            else {
+                factory = SAXParserFactory.newInstance();
+            }
+        }
+        catch (FactoryConfigurationError e) {
+            throw new ConfigException(String.format("Failed to create SAXParserFactory '%s'", task.getSaxParserFactory().get()), e);
+        }
+        factory.setValidating(false);
+        factory.setNamespaceAware(task.getNamespaceAware().or(false));
+        setFeature(factory, LOAD_EXTERNAL_DTD, task.getLoadExternalDtd());
+        setFeature(factory, EXTERNAL_GENERAL_ENTITIES, task.getExternalEntities());
+        setFeature(factory, EXTERNAL_PARAMETER_ENTITIES, task.getExternalEntities());
+        try {
+            return factory.newSAXParser();
+        }
+        catch (ParserConfigurationException | SAXException e) {
+            throw new ConfigException(String.format("Failed to create a SAXParser of %s", factory.getClass().getName()), e);
+        }
+    }
+
+    private void setFeature(SAXParserFactory factory, String name, boolean value)
+    {
+        try {
+            factory.setFeature(name, value);
+        }
+        catch (ParserConfigurationException | SAXException e) {
+            // the feature is left to the default of the implementation.
+            logger.warn(String.format("Feature %s is not supported by %s", name, factory.getClass().getName()));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import com.google.common.base.Optional;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+/**
+ * Counts the records skipped by stop_on_invalid_record: false in a task, and fails the task
+ * when max_skipped_records is exceeded. Shared by the parallel_split workers.
+ */
+class SkippedRecordCounter
+{
+    private final Optional<Long> maxSkippedRecords;
+    private final AtomicLong count = new AtomicLong();
+    private final Logger logger = Exec.getLogger(SkippedRecordCounter.class);
+
+    SkippedRecordCounter(Optional<Long> maxSkippedRecords)
+    {
+        this.maxSkippedRecords = maxSkippedRecords;
+    }
+
+    public void skip(String reason)
+    {
+        long skipped = count.incrementAndGet();
+        logger.warn(String.format("Skipped an invalid record: %s", reason));
+        if (maxSkippedRecords.isPresent() && skipped > maxSkippedRecords.get()) {
+            throw new DataException(String.format("Too many invalid records. %d records are skipped, which exceeds max_skipped_records: %d",
+                    skipped, maxSkippedRecords.get()));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+
+/**
+ * SAX Attributes view of the current START_ELEMENT of a XMLStreamReader.
+ * The view reads the reader directly, so it is valid only while the reader stays on the element.
+ */
+class StaxAttributes
+        implements Attributes
+{
+    private final XMLStreamReader reader;
+
+    StaxAttributes(XMLStreamReader reader)
+    {
+        this.reader = reader;
+    }
+
+    @Override
+    public int getLength()
+    {
+        return reader.getAttributeCount();
+    }
+
+    @Override
+    public String getURI(int index)
+    {
+        String uri = reader.getAttributeNamespace(index);
+        return uri == null ? "" : uri;
+    }
+
+    @Override
+    public String getLocalName(int index)
+    {
+        return reader.getAttributeLocalName(index);
+    }
+
+    @Override
+    public String getQName(int index)
+    {
+        String prefix = reader.getAttributePrefix(index);
+        if (prefix == null || prefix.isEmpty()) {
+            return reader.getAttributeLocalName(index);
+        }
+        return prefix + ":" + reader.getAttributeLocalName(index);
+    }
+
+    @Override
+    public String getType(int index)
+    {
+        return reader.getAttributeType(index);
+    }
+
+    @Override
+    public String getValue(int index)
+    {
+        return reader.getAttributeValue(index);
+    }
+
+    @Override
+    public int getIndex(String uri, String localName)
+    {
+        for (int i = 0; i < getLength(); i++) {
+            if (getURI(i).equals(uri) && getLocalName(i).equals(localName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getIndex(String qName)
+    {
+        for (int i = 0; i < getLength(); i++) {
+            if (getQName(i).equals(qName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String getType(String uri, String localName)
+    {
+        int index = getIndex(uri, localName);
+        return index < 0 ? null : getType(index);
+    }
+
+    @Override
+    public String getType(String qName)
+    {
+        int index = getIndex(qName);
+        return index < 0 ? null : getType(index);
+    }
+
+    @Override
+    public String getValue(String uri, String localName)
+    {
+        int index = getIndex(uri, localName);
+        return index < 0 ? null : getValue(index);
+    }
+
+    @Override
+    public String getValue(String qName)
+    {
+        int index = getIndex(qName);
+        return index < 0 ? null : getValue(index);
+    }
+}
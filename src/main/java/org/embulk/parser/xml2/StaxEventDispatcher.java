@@ -0,0 +1,96 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Delivers StAX events to RecordHandler through the SAX callbacks.
+ * While the handler skips a subtree, events in it are dropped without reading their names or texts.
+ */
+class StaxEventDispatcher
+{
+    private final XMLStreamReader reader;
+    private final RecordHandler handler;
+    private final StaxAttributes attributes;
+    // depth in the skipped subtree. 0 if not skipping.
+    private int skipDepth = 0;
+
+    StaxEventDispatcher(XMLStreamReader reader, RecordHandler handler)
+    {
+        this.reader = reader;
+        this.handler = handler;
+        this.attributes = new StaxAttributes(reader);
+    }
+
+    public boolean isSkipping()
+    {
+        return skipDepth > 0;
+    }
+
+    public void dispatch(int event) throws SAXException
+    {
+        if (skipDepth > 0) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                skipDepth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && --skipDepth == 0) {
+                handler.endElement(reader.getNamespaceURI(), reader.getLocalName(), getQName());
+            }
+            return;
+        }
+
+        switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+            handler.startElement(reader.getNamespaceURI(), reader.getLocalName(), getQName(), attributes);
+            if (handler.isSkippingSubtree()) {
+                skipDepth = 1;
+            }
+            break;
+        case XMLStreamConstants.END_ELEMENT:
+            handler.endElement(reader.getNamespaceURI(), reader.getLocalName(), getQName());
+            break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+            handler.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            break;
+        default:
+            break;
+        }
+    }
+
+    private String getQName()
+    {
+        String prefix = reader.getPrefix();
+        if (prefix == null || prefix.isEmpty()) {
+            return reader.getLocalName();
+        }
+        return prefix + ":" + reader.getLocalName();
+    }
+}
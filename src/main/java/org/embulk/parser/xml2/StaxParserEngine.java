@@ -0,0 +1,140 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.codehaus.stax2.XMLStreamReader2;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileInput;
+import org.embulk.spi.util.FileInputInputStream;
+import org.slf4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Pull parser of the StAX implementation found on the classpath.
+ * Texts are passed to the handler from the reader's own char[] without copying.
+ */
+class StaxParserEngine
+        extends ParserEngine
+{
+    // looking up the implementation and configuring it is costly compared with a small file.
+    private final XMLInputFactory factory;
+    // 0 if the input is passed to the reader as it is.
+    private final int inputBufferSize;
+
+    StaxParserEngine(PluginTask task)
+    {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        configure(factory, task, Exec.getLogger(StaxParserEngine.class));
+        inputBufferSize = task.getInputBufferSize().or(0);
+    }
+
+    /**
+     * Sets the parser options of the task which StAX defines, and the entity limits of the JDK's implementation.
+     */
+    static void configure(XMLInputFactory factory, PluginTask task, Logger logger)
+    {
+        // DTDs are not processed at all unless load_external_dtd is true.
+        setProperty(factory, XMLInputFactory.SUPPORT_DTD, task.getLoadExternalDtd(), logger);
+        setProperty(factory, XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, task.getExternalEntities(), logger);
+        if (task.getNamespaceAware().isPresent()) {
+            setProperty(factory, XMLInputFactory.IS_NAMESPACE_AWARE, task.getNamespaceAware().get(), logger);
+        }
+        if (task.getEntityExpansionLimit().isPresent()) {
+            setProperty(factory, ENTITY_EXPANSION_LIMIT, task.getEntityExpansionLimit().get(), logger);
+        }
+        if (task.getTotalEntitySizeLimit().isPresent()) {
+            setProperty(factory, TOTAL_ENTITY_SIZE_LIMIT, task.getTotalEntitySizeLimit().get(), logger);
+        }
+    }
+
+    private static void setProperty(XMLInputFactory factory, String name, Object value, Logger logger)
+    {
+        try {
+            factory.setProperty(name, value);
+        }
+        catch (IllegalArgumentException e) {
+            logger.warn(String.format("Property %s is not supported by %s", name, factory.getClass().getName()));
+        }
+    }
+
+    @Override
+    public void parse(FileInput input, RecordHandler handler) throws IOException, SAXException
+    {
+        try (FileInputInputStream is = new FileInputInputStream(input)) {
+            while (is.nextFile()) {
+                XMLStreamReader reader = null;
+                try {
+                    InputStream in = is;
+                    if (inputBufferSize > 0) {
+                        // StAX has no property of the buffer size. reads the input in blocks of the size.
+                        in = new BufferedInputStream(is, inputBufferSize);
+                    }
+                    reader = factory.createXMLStreamReader(in);
+                    StaxEventDispatcher dispatcher = new StaxEventDispatcher(reader, handler);
+                    handler.startDocument();
+                    while (reader.hasNext()) {
+                        int event = reader.next();
+                        dispatcher.dispatch(event);
+                        if (dispatcher.isSkipping() && reader instanceof XMLStreamReader2) {
+                            // Stax2 implementations skip the subtree without materializing its texts.
+                            ((XMLStreamReader2) reader).skipElement();
+                            dispatcher.dispatch(reader.getEventType());
+                        }
+                    }
+                    handler.endDocument();
+                }
+                catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+                finally {
+                    closeQuietly(reader);
+                }
+            }
+        }
+    }
+
+    static void closeQuietly(XMLStreamReader reader)
+    {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        }
+        catch (XMLStreamException e) {
+            // ignore
+        }
+    }
+}
@@ -24,48 +24,371 @@
 
 package org.embulk.parser.xml2;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 
 import java.io.IOException;
-import java.util.Stack;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.List;
+import java.util.Locale;
 
 import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.ParserPlugin;
-import org.embulk.spi.Column;
-import org.embulk.spi.ColumnVisitor;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileInput;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.Schema;
 import org.embulk.spi.SchemaConfig;
-import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.time.TimestampParser;
-import org.embulk.spi.util.FileInputInputStream;
 import org.embulk.spi.util.Timestamps;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 import org.slf4j.Logger;
+import org.xml.sax.SAXException;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
 
 public class Xml2ParserPlugin
         implements ParserPlugin
 {
+    private final Logger logger = Exec.getLogger(Xml2ParserPlugin.class);
+
     public interface PluginTask
             extends Task, TimestampParser.Task
     {
         @Config("root")
-        public String getRoot();
+        @ConfigDefault("null")
+        public Optional<String> getRoot();
+
+        @Config("roots")
+        @ConfigDefault("[]")
+        public List<ConfigSource> getRoots();
+
+        @Config("record_type_column")
+        @ConfigDefault("null")
+        public Optional<String> getRecordTypeColumn();
 
         @Config("schema")
         public SchemaConfig getSchema();
+
+        @Config("parser_engine")
+        @ConfigDefault("\"sax\"")
+        public ParserEngineType getParserEngine();
+
+        @Config("read_ahead")
+        @ConfigDefault("false")
+        public boolean getReadAhead();
+
+        @Config("read_ahead_depth")
+        @ConfigDefault("4")
+        public int getReadAheadDepth();
+
+        @Config("read_ahead_buffer_size")
+        @ConfigDefault("1048576")
+        public int getReadAheadBufferSize();
+
+        @Config("parallel_split")
+        @ConfigDefault("false")
+        public boolean getParallelSplit();
+
+        @Config("parallel_split_threads")
+        @ConfigDefault("null")
+        public Optional<Integer> getParallelSplitThreads();
+
+        @Config("parallel_split_chunk_size")
+        @ConfigDefault("8388608")
+        public int getParallelSplitChunkSize();
+
+        @Config("parallel_split_preserve_order")
+        @ConfigDefault("true")
+        public boolean getParallelSplitPreserveOrder();
+
+        @Config("stop_on_invalid_record")
+        @ConfigDefault("true")
+        public boolean getStopOnInvalidRecord();
+
+        @Config("on_invalid_value")
+        @ConfigDefault("\"skip_record\"")
+        public InvalidValueAction getOnInvalidValue();
+
+        @Config("max_skipped_records")
+        @ConfigDefault("null")
+        public Optional<Long> getMaxSkippedRecords();
+
+        @Config("progress_log_interval")
+        @ConfigDefault("60")
+        public int getProgressLogInterval();
+
+        @Config("resume_from")
+        @ConfigDefault("null")
+        public Optional<Long> getResumeFrom();
+
+        @Config("resume_from_file")
+        @ConfigDefault("0")
+        public int getResumeFromFile();
+
+        @Config("checkpoint")
+        @ConfigDefault("false")
+        public boolean getCheckpoint();
+
+        @Config("filter")
+        @ConfigDefault("[]")
+        public List<ConfigSource> getFilter();
+
+        @Config("page_flush_records")
+        @ConfigDefault("null")
+        public Optional<Integer> getPageFlushRecords();
+
+        @Config("page_flush_interval")
+        @ConfigDefault("null")
+        public Optional<Integer> getPageFlushInterval();
+
+        @Config("load_external_dtd")
+        @ConfigDefault("false")
+        public boolean getLoadExternalDtd();
+
+        @Config("external_entities")
+        @ConfigDefault("false")
+        public boolean getExternalEntities();
+
+        @Config("entity_expansion_limit")
+        @ConfigDefault("null")
+        public Optional<Integer> getEntityExpansionLimit();
+
+        @Config("total_entity_size_limit")
+        @ConfigDefault("null")
+        public Optional<Integer> getTotalEntitySizeLimit();
+
+        @Config("namespace_aware")
+        @ConfigDefault("null")
+        public Optional<Boolean> getNamespaceAware();
+
+        @Config("input_buffer_size")
+        @ConfigDefault("null")
+        public Optional<Integer> getInputBufferSize();
+
+        @Config("sax_parser_factory")
+        @ConfigDefault("null")
+        public Optional<String> getSaxParserFactory();
+    }
+
+    public interface ColumnOption
+            extends Task
+    {
+        @Config("max_json_size")
+        @ConfigDefault("16777216")
+        public int getMaxJsonSize();
+
+        @Config("on_repeat")
+        @ConfigDefault("\"last\"")
+        public RepeatMode getOnRepeat();
+
+        @Config("max_value_size")
+        @ConfigDefault("null")
+        public Optional<Integer> getMaxValueSize();
+
+        @Config("on_oversized_value")
+        @ConfigDefault("\"error\"")
+        public OversizedValueAction getOnOversizedValue();
+
+        @Config("root")
+        @ConfigDefault("null")
+        public Optional<String> getRoot();
+
+        @Config("path")
+        @ConfigDefault("null")
+        public Optional<String> getPath();
+    }
+
+    public interface RootOption
+            extends Task
+    {
+        @Config("path")
+        public String getPath();
+
+        @Config("record_type")
+        @ConfigDefault("null")
+        public Optional<String> getRecordType();
+    }
+
+    public interface FilterCondition
+            extends Task
+    {
+        @Config("column")
+        public String getColumn();
+
+        @Config("operator")
+        public FilterOperator getOperator();
+
+        @Config("value")
+        public String getValue();
+    }
+
+    public enum ParserEngineType
+    {
+        SAX("sax"),
+        STAX("stax"),
+        AALTO_ASYNC("aalto_async");
+
+        private final String name;
+
+        ParserEngineType(String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static ParserEngineType fromString(String value)
+        {
+            for (ParserEngineType type : values()) {
+                if (type.name.equals(value.toLowerCase(Locale.ENGLISH))) {
+                    return type;
+                }
+            }
+            throw new ConfigException(String.format("Unknown parser_engine '%s'. Supported engines are sax, stax and aalto_async", value));
+        }
+    }
+
+    public enum RepeatMode
+    {
+        LAST("last"),
+        FIRST("first"),
+        ARRAY("array"),
+        EXPLODE("explode");
+
+        private final String name;
+
+        RepeatMode(String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static RepeatMode fromString(String value)
+        {
+            for (RepeatMode mode : values()) {
+                if (mode.name.equals(value.toLowerCase(Locale.ENGLISH))) {
+                    return mode;
+                }
+            }
+            throw new ConfigException(String.format("Unknown on_repeat '%s'. Supported values are last, first, array and explode", value));
+        }
+    }
+
+    public enum InvalidValueAction
+    {
+        SKIP_RECORD("skip_record"),
+        SET_NULL("set_null");
+
+        private final String name;
+
+        InvalidValueAction(String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static InvalidValueAction fromString(String value)
+        {
+            for (InvalidValueAction action : values()) {
+                if (action.name.equals(value.toLowerCase(Locale.ENGLISH))) {
+                    return action;
+                }
+            }
+            throw new ConfigException(String.format("Unknown on_invalid_value '%s'. Supported values are skip_record and set_null", value));
+        }
+    }
+
+    public enum OversizedValueAction
+    {
+        TRUNCATE("truncate"),
+        NULL("null"),
+        ERROR("error");
+
+        private final String name;
+
+        OversizedValueAction(String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static OversizedValueAction fromString(String value)
+        {
+            for (OversizedValueAction action : values()) {
+                if (action.name.equals(value.toLowerCase(Locale.ENGLISH))) {
+                    return action;
+                }
+            }
+            throw new ConfigException(String.format("Unknown on_oversized_value '%s'. Supported values are truncate, null and error", value));
+        }
+    }
+
+    public enum FilterOperator
+    {
+        EQ("eq"),
+        NE("ne"),
+        LT("lt"),
+        LE("le"),
+        GT("gt"),
+        GE("ge");
+
+        private final String name;
+
+        FilterOperator(String name)
+        {
+            this.name = name;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+
+        @JsonCreator
+        public static FilterOperator fromString(String value)
+        {
+            for (FilterOperator operator : values()) {
+                if (operator.name.equals(value.toLowerCase(Locale.ENGLISH))) {
+                    return operator;
+                }
+            }
+            throw new ConfigException(String.format("Unknown filter operator '%s'. Supported operators are eq, ne, lt, le, gt and ge", value));
+        }
     }
 
     @Override
@@ -74,6 +397,56 @@ public class Xml2ParserPlugin
         PluginTask task = config.loadConfig(PluginTask.class);
 
         Schema schema = task.getSchema().toSchema();
+        // validates root and column paths, and the filter conditions.
+        ColumnOption[] columnOptions = newColumnOptions(task);
+        PathTrie pathTrie = PathTrie.compile(task, schema, columnOptions);
+        if (pathTrie.getRootPaths().length > 1 && (task.getParallelSplit() || !task.getStopOnInvalidRecord()
+                || isResuming(task) || task.getCheckpoint())) {
+            // RecordSplitter finds the boundaries of one root element.
+            throw new ConfigException("parallel_split, stop_on_invalid_record: false, resume_from, resume_from_file and checkpoint support only one root");
+        }
+        RecordFilter.newPredicates(task.getFilter(), schema, columnOptions,
+                Timestamps.newTimestampColumnParsers(task, task.getSchema()));
+        if (task.getReadAheadDepth() <= 0 || task.getReadAheadBufferSize() <= 0) {
+            throw new ConfigException("read_ahead_depth and read_ahead_buffer_size must be positive");
+        }
+        if (task.getParallelSplitChunkSize() <= 0) {
+            throw new ConfigException("parallel_split_chunk_size must be positive");
+        }
+        if (task.getParallelSplitThreads().isPresent() && task.getParallelSplitThreads().get() <= 0) {
+            throw new ConfigException("parallel_split_threads must be positive");
+        }
+        if (task.getMaxSkippedRecords().isPresent() && task.getMaxSkippedRecords().get() < 0) {
+            throw new ConfigException("max_skipped_records must not be negative");
+        }
+        if (task.getProgressLogInterval() < 0) {
+            throw new ConfigException("progress_log_interval must not be negative");
+        }
+        if ((task.getEntityExpansionLimit().isPresent() && task.getEntityExpansionLimit().get() < 0)
+                || (task.getTotalEntitySizeLimit().isPresent() && task.getTotalEntitySizeLimit().get() < 0)) {
+            throw new ConfigException("entity_expansion_limit and total_entity_size_limit must not be negative");
+        }
+        if (task.getInputBufferSize().isPresent() && task.getInputBufferSize().get() <= 0) {
+            throw new ConfigException("input_buffer_size must be positive");
+        }
+        // validates the parser options, e.g. sax_parser_factory.
+        ParserEngine.newParserEngine(task);
+        if ((task.getPageFlushRecords().isPresent() && task.getPageFlushRecords().get() <= 0)
+                || (task.getPageFlushInterval().isPresent() && task.getPageFlushInterval().get() <= 0)) {
+            throw new ConfigException("page_flush_records and page_flush_interval must be positive");
+        }
+        if ((task.getResumeFrom().isPresent() && task.getResumeFrom().get() < 0) || task.getResumeFromFile() < 0) {
+            throw new ConfigException("resume_from and resume_from_file must not be negative");
+        }
+        if (isResuming(task)) {
+            // the parser does not know the number of tasks, which the input plugin decides.
+            logger.warn(String.format("resume_from_file: %d and resume_from: %d apply to every task. If the input runs in"
+                    + " more than one task, the records before them in the other tasks are lost",
+                    task.getResumeFromFile(), task.getResumeFrom().or(0L)));
+        }
+        if (task.getCheckpoint() && task.getParallelSplit() && !task.getParallelSplitPreserveOrder()) {
+            throw new ConfigException("checkpoint requires parallel_split_preserve_order: true");
+        }
 
         control.run(task.dump(), schema);
     }
@@ -85,172 +458,70 @@ public class Xml2ParserPlugin
         PluginTask task = taskSource.loadTask(PluginTask.class);
         final TimestampParser[] timestampParsers = Timestamps.newTimestampColumnParsers(task, task.getSchema());
         
-        final String rootElementName = task.getRoot();
+        final ColumnOption[] columnOptions = newColumnOptions(task);
+        final PathTrie pathTrie = PathTrie.compile(task, schema, columnOptions);
         
-        SAXParser parser = createXMLParser();
-        try (FileInputInputStream is = new FileInputInputStream(input)) {
+        final ParserMetrics metrics = new ParserMetrics(schema, task.getProgressLogInterval());
+        final SkippedRecordCounter skippedRecords = new SkippedRecordCounter(task.getMaxSkippedRecords());
+        final Checkpoint checkpoint = new Checkpoint(task.getResumeFromFile(), task.getResumeFrom().or(0L));
+        boolean completed = false;
+        
+        // reads and decodes the input on another thread while parsing.
+        FileInput source = input;
+        if (task.getReadAhead()) {
+            source = new ReadAheadFileInput(input, task.getReadAheadDepth(), task.getReadAheadBufferSize());
+        }
+        try {
+            if (task.getParallelSplit()) {
+                new ParallelSplitRunner(task, schema, pathTrie, metrics, skippedRecords, checkpoint)
+                        .run(metrics.meter(source, logger), output);
+                completed = true;
+                metrics.log(logger);
+                return;
+            }
+            
             final PageBuilder pageBuilder = new PageBuilder(Exec.getBufferAllocator(), schema, output);
-            while(is.nextFile()) {
-                parser.parse(is, new DefaultHandler() {
-                    
-                    private Stack<String> currentXPath;
-                    private boolean isElementMatch = false;
-                    private StringBuffer valueBuf = null;
-                    private String currentSubElementName = null;
-                    private int extractedTotalPageNum = 0;
-                    private Logger logger = Exec.getLogger(getClass());;
-                    
-                    @Override
-                    public void startDocument() throws SAXException {
-                        currentXPath = new Stack<String>();
-                        logger.debug("start parsing document.");
-                    }
-
-                    @Override
-                    public void startElement(String uri, String localName, String qName, Attributes attributes)
-                            throws SAXException {
-                        currentXPath.push(qName);
-                        
-                        String path = toXPath(currentXPath);
-                        // if this element is not under the root element, skip process.
-                        if (!isChildOfRootElement(rootElementName, path)) {
-                            return;
-                        }
-                        
-                        String subElementName = getSubElementName(rootElementName, path);
-                        if (subElementName == null) {
-                            return;
-                        }
-                        currentSubElementName = subElementName;
-                        
-                        if(getColumn(schema, subElementName) != null){
-                            isElementMatch = true;
-                            valueBuf = new StringBuffer();
-                        }
-                    }
-
-                    private Column getColumn(Schema schema, String subElementName) {
-                        for (Column c : schema.getColumns()){
-                            if (c.getName().equals(subElementName)) return c;
-                        }
-                        return null;
-                    }
-
-                    private String getSubElementName(String rootElementName, String path) {
-                        if (rootElementName.equals(path) || !path.startsWith(rootElementName)) {
-                            return null;
-                        } else {
-                            return path.substring(rootElementName.length() + 1);
-                        }
-                    }
-
-                    private boolean isChildOfRootElement(String rootElementName, String xPath) {
-                        return xPath.startsWith(rootElementName);
-                    }
-
-                    private String toXPath(Stack<String> stack) {
-                        StringBuffer buf = new StringBuffer();
-                        for(String p : stack) {
-                            if (buf.length() > 0) {
-                                buf.append("/");
-                            }
-                            buf.append(p);
-                        }
-                        return buf.toString();
-                    }
-
-                    @Override
-                    public void endElement(String uri, String localName, String qName) throws SAXException {
-                        
-                        String path = toXPath(currentXPath);
-                        if (path.equals(rootElementName)) {
-                            pageBuilder.addRecord();
-                            extractedTotalPageNum++;
-                        }
-                        
-                        // if isElementMatch is true, set data to Page.
-                        if (isElementMatch) {
-                            final String strValue = valueBuf.toString();
-                            
-                            schema.visitColumns(new ColumnVisitor() {
-
-                                @Override
-                                public void timestampColumn(Column column) {
-                                    if (!column.getName().equals(currentSubElementName)) return;
-                                    TimestampParser tsparser = timestampParsers[column.getIndex()];
-                                    Timestamp time = tsparser.parse(strValue);
-                                    pageBuilder.setTimestamp(column, time);
-                                }
-
-                                @Override
-                                public void stringColumn(Column column) {
-                                    if (!column.getName().equals(currentSubElementName)) return;
-                                    pageBuilder.setString(column, strValue);
-                                }
-
-                                @Override
-                                public void longColumn(Column column) {
-                                    if (!column.getName().equals(currentSubElementName)) return;
-                                    pageBuilder.setLong(column, Long.parseLong(strValue));
-                                }
-
-                                @Override
-                                public void doubleColumn(Column column) {
-                                    if (!column.getName().equals(currentSubElementName)) return;
-                                    pageBuilder.setDouble(column, Double.parseDouble(strValue));
-                                }
-
-                                @Override
-                                public void booleanColumn(Column column) {
-                                    if (!column.getName().equals(currentSubElementName)) return;
-                                    pageBuilder.setBoolean(column, Boolean.parseBoolean(strValue));
-                                }
-
-                                @Override
-                                public void jsonColumn(Column column) {
-                                    if (!column.getName().equals(currentSubElementName)) return;
-                                    // treat json as string.
-                                    pageBuilder.setString(column, strValue);
-                                }
-                            });
-                        }
-                        
-                        currentXPath.pop();
-                        isElementMatch = false;
-                        valueBuf = null;
-                        currentSubElementName = null;
-                    } 
-                    
-                    @Override
-                    public void characters(char[] ch, int offset, int length) {
-                        if (!isElementMatch) {
-                            return;
-                        }
-                        valueBuf.append(ch,offset,length);
-                    }
-                    
-                    @Override
-                    public void endDocument() {
-                        logger.debug("end parsing document. total extracted page count is : " + extractedTotalPageNum);
-                    }
-                });
-                pageBuilder.flush();
+            ParserEngine engine = ParserEngine.newParserEngine(task);
+            if (!task.getStopOnInvalidRecord() || isResuming(task) || task.getCheckpoint()) {
+                // parses root elements in chunks to resume at the next one after malformed markup
+                // or after resume_from, and to know the offset of the last one parsed.
+                engine = new ChunkedParserEngine(engine, pathTrie.getRootPaths()[0], !task.getStopOnInvalidRecord(),
+                        task.getResumeFromFile(), task.getResumeFrom().or(0L), checkpoint);
             }
+            long start = System.nanoTime();
+            engine.parse(metrics.meter(source, logger), new RecordHandler(task, pathTrie, schema, timestampParsers,
+                    columnOptions, pageBuilder, metrics, skippedRecords));
+            metrics.addParseNanos(System.nanoTime() - start);
+            start = System.nanoTime();
             pageBuilder.finish();
+            metrics.addPageBuilderNanos(System.nanoTime() - start);
             pageBuilder.close();
+            completed = true;
+            metrics.log(logger);
         } catch (SAXException | IOException e) {
             Throwables.propagate(e); // TODO error handling
+        } finally {
+            if (task.getCheckpoint()) {
+                checkpoint.log(logger, completed);
+            }
+            if (source != input) {
+                source.close();
+            }
         }
     }
 
-    private SAXParser createXMLParser() {
-        SAXParser parser;
-        try {
-            parser = SAXParserFactory.newInstance().newSAXParser();
-            return parser;
-        } catch (ParserConfigurationException | SAXException e) {
-            Throwables.propagate(e); // TODO error handling
+    static boolean isResuming(PluginTask task)
+    {
+        return task.getResumeFrom().isPresent() || task.getResumeFromFile() > 0;
+    }
+
+    static ColumnOption[] newColumnOptions(PluginTask task)
+    {
+        SchemaConfig schemaConfig = task.getSchema();
+        ColumnOption[] options = new ColumnOption[schemaConfig.size()];
+        for (int i = 0; i < options.length; i++) {
+            options[i] = schemaConfig.getColumn(i).getOption().loadConfig(ColumnOption.class);
         }
-        return null;
+        return options;
     }
 }
@@ -0,0 +1,139 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestCharParsers {
+    @Test
+    public void testParseDouble() {
+        assertParseDouble("0", "-0", "-0.0", "+0.0", "1", "-123.456", "0.1", "0.3", "3.14159");
+        // a sign or a digit missing on one side of the point.
+        assertParseDouble("+1.5", ".5", "-.5", "+.5", "5.", "-5.", ".", "-", "+", "-.", "");
+        // exponents.
+        assertParseDouble("1e10", "1E-5", "-2.5e+3", "1e308", "1e309", "4.9e-324", "1e-400", ".5e1", "5.e1", "1e", "e1");
+        // more than 15 significant digits and fractions longer than the exact powers of ten.
+        assertParseDouble("1234567890123456", "12345678901234567890", "9007199254740993", "0.1234567890123456789",
+                "123456789012345.6", "000000000000000001.5", "0.0000000000000000000001", "0.00000000000000000000001",
+                "179769313486231570000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000"
+                + "000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000"
+                + "000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000");
+        assertParseDouble("NaN", "-NaN", "Infinity", "-Infinity", "+Infinity", "infinity");
+        // other inputs which Double.parseDouble accepts or rejects.
+        assertParseDouble("0x1p3", "1.5d", "1.5f", "1.5D", " 1.5 ", "\n\t1.5\r\n", "\u000c1.5", "1 5", "1.2.3", "abc", "１");
+    }
+
+    @Test
+    public void testParseDoubleRandom() {
+        Random random = new Random(0);
+        for (int n = 0; n < 100000; n++) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextInt(4) == 0) {
+                sb.append(random.nextBoolean() ? '-' : '+');
+            }
+            int digits = random.nextInt(20);
+            int point = random.nextInt(digits + 2) - 1;
+            for (int i = 0; i < digits; i++) {
+                if (i == point) {
+                    sb.append('.');
+                }
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+            if (random.nextInt(8) == 0) {
+                sb.append('e').append(random.nextInt(40) - 20);
+            }
+            assertParseDouble(sb.toString());
+        }
+    }
+
+    @Test
+    public void testParseLong() {
+        assertParseLong("0", "-0", "+0", "1", "+5", "-123", "00012",
+                "9223372036854775807", "-9223372036854775808", "9223372036854775808", "-9223372036854775809",
+                "99999999999999999999", "", "-", "+", "--1", "+-1", "1-", "12a", "1.0", "1e3",
+                " 1", "1 ", "\n1\n", "١٢٣", "１２３");
+    }
+
+    @Test
+    public void testParseBoolean() {
+        assertParseBoolean("true", "TRUE", "True", "tRuE", "false", "FALSE", "", "t", "tru", "truee", "yes", "1",
+                " true", "true ", "\ntrue\n", "ｔrue");
+    }
+
+    private static void assertParseDouble(String... values) {
+        for (String value : values) {
+            char[] buf = pad(value);
+            try {
+                double expected = Double.parseDouble(value);
+                assertEquals(value, Double.doubleToRawLongBits(expected),
+                        Double.doubleToRawLongBits(CharParsers.parseDouble(buf, 2, value.length())));
+            }
+            catch (NumberFormatException e) {
+                try {
+                    CharParsers.parseDouble(buf, 2, value.length());
+                    fail(value);
+                }
+                catch (NumberFormatException ex) {
+                    assertEquals(e.getMessage(), ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void assertParseLong(String... values) {
+        for (String value : values) {
+            char[] buf = pad(value);
+            try {
+                assertEquals(value, Long.parseLong(value), CharParsers.parseLong(buf, 2, value.length()));
+            }
+            catch (NumberFormatException e) {
+                try {
+                    CharParsers.parseLong(buf, 2, value.length());
+                    fail(value);
+                }
+                catch (NumberFormatException ex) {
+                    assertEquals(e.getMessage(), ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void assertParseBoolean(String... values) {
+        for (String value : values) {
+            assertEquals(value, Boolean.parseBoolean(value), CharParsers.parseBoolean(pad(value), 2, value.length()));
+        }
+    }
+
+    /**
+     * Puts the value in the middle of a buffer, as the parser passes a range of its buffer.
+     */
+    private static char[] pad(String value) {
+        return ("19" + value + "12").toCharArray();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2016 Yahoo Japan Corporation. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.embulk.parser.xml2;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.time.TimestampParser;
+import org.embulk.spi.util.Timestamps;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestFastTimestampParser {
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testLeapDays() {
+        assertSameAsTimestampParser("%Y-%m-%dT%H:%M:%SZ", "UTC",
+                "2016-02-29T23:59:59Z", "2000-02-29T00:00:00Z", "2015-03-01T00:00:00Z",
+                "2100-02-28T12:00:00Z", "2100-03-01T00:00:00Z", "2400-02-29T00:00:00Z");
+        assertSameAsTimestampParser("%Y%m%d", "UTC", "20160229", "20000229", "19000301");
+    }
+
+    @Test
+    public void testDatesBefore1970() {
+        assertSameAsTimestampParser("%Y-%m-%d %H:%M:%S", "UTC",
+                "1969-12-31 23:59:59", "1900-01-01 00:00:00", "1600-02-29 06:30:15", "0001-01-01 00:00:00");
+    }
+
+    @Test
+    public void testFixedOffsetTimeZone() {
+        assertSameAsTimestampParser("%Y-%m-%d %H:%M:%S", "+09:00",
+                "2004-04-30 23:46:00", "1970-01-01 08:59:59", "1960-06-15 00:00:00");
+        assertSameAsTimestampParser("%d/%m/%Y %H:%M", "-05:30", "31/12/1999 23:59", "01/01/2000 00:00");
+    }
+
+    @Test
+    public void testEpoch() {
+        assertSameAsTimestampParser("%s", "UTC", "0", "1449883580", "-86400", "-1");
+        assertSameAsTimestampParser("%Q", "UTC", "0", "1449883580123", "-1", "-86400001");
+    }
+
+    @Test
+    public void testFallback() {
+        // a time zone with daylight saving time.
+        assertSameAsTimestampParser("%Y-%m-%d %H:%M:%S", "America/New_York", "2016-07-01 12:00:00", "2016-01-01 12:00:00");
+        // a format with other directives.
+        assertSameAsTimestampParser("%Y-%m-%d %H:%M:%S.%N", "UTC", "2016-01-01 00:00:00.123", "1969-12-31 23:59:59.5");
+        // values which do not exactly match the fixed width format.
+        assertSameAsTimestampParser("%Y-%m-%d %H:%M:%S", "UTC", "2016-2-9 1:02:03", "2016-02-09 01:02:03");
+    }
+
+    @Test
+    public void testCache() {
+        // more values than the cache entries, so they collide in the cache and are hit again.
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            values.add(String.format("2016-01-01T%02d:%02d:%02dZ", i / 3600, i / 60 % 60, i % 60));
+        }
+        List<String> shuffled = new ArrayList<String>(values);
+        Collections.shuffle(shuffled, new Random(0));
+        values.addAll(shuffled);
+        values.addAll(shuffled);
+        assertSameAsTimestampParser("%Y-%m-%dT%H:%M:%SZ", "UTC", values.toArray(new String[values.size()]));
+    }
+
+    private void assertSameAsTimestampParser(String format, String timeZone, String... values) {
+        PluginTask task = Exec.newConfigSource()
+                .set("root", "root")
+                .set("schema", ImmutableList.of(ImmutableMap.of("name", "t", "type", "timestamp",
+                        "format", format, "timezone", timeZone)))
+                .loadConfig(PluginTask.class);
+        TimestampParser[] parsers = Timestamps.newTimestampColumnParsers(task, task.getSchema());
+        FastTimestampParser parser = FastTimestampParser.newFastTimestampParsers(task, parsers)[0];
+        // values are parsed at an offset of a reused buffer, as RecordHandler does.
+        char[] buf = new char[64];
+        for (String value : values) {
+            value.getChars(0, value.length(), buf, 3);
+            assertEquals(value, parsers[0].parse(value), parser.parse(buf, 3, value.length()));
+        }
+    }
+}
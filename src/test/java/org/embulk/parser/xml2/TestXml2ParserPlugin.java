@@ -26,22 +26,33 @@ package org.embulk.parser.xml2;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.parser.xml2.Xml2ParserPlugin.PluginTask;
+import org.embulk.spi.Buffer;
 import org.embulk.spi.Column;
 import org.embulk.spi.ColumnVisitor;
 import org.embulk.spi.Exec;
+import org.embulk.spi.FileInput;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.ParserPlugin;
@@ -49,6 +60,9 @@ import org.embulk.spi.Schema;
 import org.embulk.spi.TransactionalPageOutput;
 import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.util.InputStreamFileInput;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.xml.sax.SAXParseException;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -61,6 +75,7 @@ public class TestXml2ParserPlugin {
     @Rule
     public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
     private Xml2ParserPlugin plugin;
+    private int pageCount;
 
     private static String PATH_PREFIX;
 
@@ -87,7 +102,483 @@ public class TestXml2ParserPlugin {
     @Test
     public void testFile() throws FileNotFoundException {
         
-        ConfigSource config = config();
+        List<Map<String,Object>> resultList = parse(config());
+        
+        //assert...
+        for (Map<String,Object> r : resultList) {
+            System.out.println(r);
+        }
+        
+        assertSampleRecords(resultList);
+    }
+
+    @Test
+    public void testFileWithStaxEngine() throws FileNotFoundException {
+        assertSampleRecords(parse(config().set("parser_engine", "stax")));
+    }
+
+    @Test
+    public void testFileWithAaltoAsyncEngine() throws FileNotFoundException {
+        assertSampleRecords(parse(config().set("parser_engine", "aalto_async")));
+    }
+
+    @Test
+    public void testFileWithParallelSplit() throws FileNotFoundException {
+        assertSampleRecords(parse(config().set("parallel_split", true).set("parallel_split_chunk_size", 1)
+                .set("parallel_split_threads", 2)));
+    }
+
+    @Test
+    public void testFileWithReadAhead() throws FileNotFoundException {
+        assertSampleRecords(parse(config().set("read_ahead", true).set("read_ahead_depth", 1)
+                .set("read_ahead_buffer_size", 100)));
+
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("dtd_01.xml").getPath();
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config().set("parser_engine", engine).set("read_ahead", true)
+                    .set("read_ahead_buffer_size", 100), PATH_PREFIX, path, PATH_PREFIX);
+            assertMultipleFileRecords(resultList);
+        }
+    }
+
+    @Test
+    public void testReadAheadAfterClose() throws FileNotFoundException {
+        ReadAheadFileInput input = new ReadAheadFileInput(new InputStreamFileInput(Exec.getBufferAllocator(),
+                new InputStreamFileInput.IteratorProvider(inputStreams(PATH_PREFIX, PATH_PREFIX))), 1, 100);
+        assertTrue(input.nextFile());
+        input.close();
+        try {
+            input.nextFile();
+            fail("nextFile() after close() does not fail");
+        }
+        catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testAttributeColumns() throws FileNotFoundException {
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "@key", "type", "long"));
+        schema.add(ImmutableMap.of("name", "@case", "type", "string"));
+        List<Map<String,Object>> resultList = parse(config().set("root", "mediawiki/siteinfo/namespaces/namespace")
+                .set("schema", schema.build()));
+        
+        assertEquals(29, resultList.size());
+        assertEquals(-2L, resultList.get(0).get("@key"));
+        assertEquals("first-letter", resultList.get(0).get("@case"));
+        assertEquals(2302L, resultList.get(26).get("@key"));
+        assertEquals("case-sensitive", resultList.get(26).get("@case"));
+    }
+
+    @Test
+    public void testMultipleRoots() throws FileNotFoundException {
+        String namespace = "mediawiki/siteinfo/namespaces/namespace";
+        ImmutableList.Builder<Object> roots = new ImmutableList.Builder<>();
+        roots.add(ImmutableMap.of("path", "mediawiki/page", "record_type", "page"));
+        roots.add(ImmutableMap.of("path", namespace));
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "record_type", "type", "string"));
+        schema.add(ImmutableMap.of("name", "id", "type", "long"));
+        schema.add(ImmutableMap.of("name", "title", "type", "string"));
+        schema.add(ImmutableMap.of("name", "key", "type", "long", "root", namespace, "path", "@key"));
+        schema.add(ImmutableMap.of("name", "name", "type", "string", "root", namespace, "path", "."));
+        ConfigSource config = Exec.newConfigSource().set("in", inputConfig()).set("roots", roots.build())
+                .set("record_type_column", "record_type").set("schema", schema.build()).set("out", outputConfig());
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine));
+
+            assertEquals(31, resultList.size());
+            assertEquals(namespace, resultList.get(0).get("record_type"));
+            assertEquals(-2L, resultList.get(0).get("key"));
+            assertEquals("メディア", resultList.get(0).get("name"));
+            assertEquals(null, resultList.get(0).get("id"));
+            assertEquals("page", resultList.get(30).get("record_type"));
+            assertEquals(5L, resultList.get(30).get("id"));
+            assertEquals(null, resultList.get(30).get("key"));
+            assertEquals(null, resultList.get(30).get("name"));
+        }
+
+        // conditions on the columns of the other root do not drop the records.
+        ImmutableList.Builder<Object> filter = new ImmutableList.Builder<>();
+        filter.add(ImmutableMap.of("column", "id", "operator", "eq", "value", "5"));
+        filter.add(ImmutableMap.of("column", "key", "operator", "ge", "value", "2600"));
+        List<Map<String,Object>> resultList = parse(config.deepCopy().set("filter", filter.build()));
+        assertEquals(2, resultList.size());
+        assertEquals("Topic", resultList.get(0).get("name"));
+        assertEquals("アンパサンド", resultList.get(1).get("title"));
+    }
+
+    @Test
+    public void testJsonColumn() throws FileNotFoundException {
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "id", "type", "long"));
+        schema.add(ImmutableMap.of("name", "revision", "type", "json"));
+        List<Map<String,Object>> resultList = parse(config().set("schema", schema.build()));
+        
+        assertEquals(2, resultList.size());
+        Map<Value, Value> revision = ((Value) resultList.get(0).get("revision")).asMapValue().map();
+        assertEquals("2004-04-30T14:46:00Z", revision.get(ValueFactory.newString("timestamp")).toString());
+        assertEquals("{\"username\":\"Oxhop\",\"id\":\"2551\"}", revision.get(ValueFactory.newString("contributor")).toJson());
+        assertEquals("{\"@xml:space\":\"preserve\",\"#text\":\"なんか書く\"}", revision.get(ValueFactory.newString("text")).toJson());
+        assertTrue(revision.get(ValueFactory.newString("minor")).isNilValue());
+    }
+
+    @Test
+    public void testMaxJsonSize() throws FileNotFoundException {
+        // the revision of #1 exceeds 300 characters, and the one of #5 does not.
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "id", "type", "long"));
+        schema.add(ImmutableMap.of("name", "revision", "type", "json", "max_json_size", 300));
+        ConfigSource config = config().set("schema", schema.build()).set("stop_on_invalid_record", false);
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine));
+
+            assertEquals(1, resultList.size());
+            assertEquals(5L, resultList.get(0).get("id"));
+            assertNotNull(resultList.get(0).get("revision"));
+        }
+
+        List<Map<String,Object>> resultList = parse(config.deepCopy().set("on_invalid_value", "set_null"));
+        assertEquals(2, resultList.size());
+        assertEquals(1L, resultList.get(0).get("id"));
+        assertEquals(null, resultList.get(0).get("revision"));
+    }
+
+    @Test
+    public void testOnRepeat() throws FileNotFoundException {
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "namespace", "type", "string", "on_repeat", "first"));
+        schema.add(ImmutableMap.of("name", "namespace/@key", "type", "long"));
+        List<Map<String,Object>> resultList = parse(config().set("root", "mediawiki/siteinfo/namespaces")
+                .set("schema", schema.build()));
+
+        assertEquals(1, resultList.size());
+        assertEquals("メディア", resultList.get(0).get("namespace"));
+        assertEquals(2600L, resultList.get(0).get("namespace/@key"));
+
+        schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "namespace", "type", "json", "on_repeat", "array"));
+        resultList = parse(config().set("root", "mediawiki/siteinfo/namespaces")
+                .set("schema", schema.build()));
+
+        assertEquals(1, resultList.size());
+        List<Value> namespaces = ((Value) resultList.get(0).get("namespace")).asArrayValue().list();
+        assertEquals(29, namespaces.size());
+        assertEquals("{\"@key\":\"-2\",\"@case\":\"first-letter\",\"#text\":\"メディア\"}", namespaces.get(0).toJson());
+    }
+
+    @Test
+    public void testOnRepeatExplode() throws FileNotFoundException {
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "sitename", "type", "string"));
+        schema.add(ImmutableMap.of("name", "namespaces/namespace/@key", "type", "long", "on_repeat", "explode"));
+        schema.add(ImmutableMap.of("name", "namespaces/namespace", "type", "string"));
+        List<Map<String,Object>> resultList = parse(config().set("root", "mediawiki/siteinfo")
+                .set("schema", schema.build()));
+
+        assertEquals(29, resultList.size());
+        assertEquals("Wikipedia", resultList.get(0).get("sitename"));
+        assertEquals(-2L, resultList.get(0).get("namespaces/namespace/@key"));
+        assertEquals("メディア", resultList.get(0).get("namespaces/namespace"));
+        assertEquals("Wikipedia", resultList.get(2).get("sitename"));
+        assertEquals(0L, resultList.get(2).get("namespaces/namespace/@key"));
+        assertEquals("", resultList.get(2).get("namespaces/namespace"));
+        assertEquals("Wikipedia", resultList.get(28).get("sitename"));
+        assertEquals(2600L, resultList.get(28).get("namespaces/namespace/@key"));
+    }
+
+    @Test
+    public void testOnRepeatExplodeWithLateValues() throws FileNotFoundException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("explode_01.xml").getPath();
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "name", "type", "string"));
+        schema.add(ImmutableMap.of("name", "item/v", "type", "long", "on_repeat", "explode"));
+        schema.add(ImmutableMap.of("name", "tail", "type", "string"));
+        List<Map<String,Object>> resultList = parse(config().set("root", "root/record").set("schema", schema.build()), path);
+
+        // tail appears after the explode elements, so it is not in the exploded rows and a warning is logged.
+        assertEquals(3, resultList.size());
+        assertEquals("a", resultList.get(1).get("name"));
+        assertEquals(2L, resultList.get(1).get("item/v"));
+        assertEquals(null, resultList.get(1).get("tail"));
+        // a record without the explode elements has all its values.
+        assertEquals("b", resultList.get(2).get("name"));
+        assertEquals("u", resultList.get(2).get("tail"));
+    }
+
+    @Test
+    public void testMaxValueSize() throws FileNotFoundException {
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "id", "type", "long"));
+        schema.add(ImmutableMap.of("name", "title", "type", "string", "max_value_size", 9, "on_oversized_value", "truncate"));
+        schema.add(ImmutableMap.of("name", "revision/text", "type", "string", "max_value_size", 5, "on_oversized_value", "null"));
+        List<Map<String,Object>> resultList = parse(config().set("schema", schema.build()));
+
+        assertEquals(2, resultList.size());
+        assertEquals("Wikipedia", resultList.get(0).get("title"));
+        assertEquals("なんか書く", resultList.get(0).get("revision/text"));
+        assertEquals("アンパサンド", resultList.get(1).get("title"));
+        assertEquals(null, resultList.get(1).get("revision/text"));
+
+        schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "id", "type", "long"));
+        schema.add(ImmutableMap.of("name", "revision/text", "type", "string", "max_value_size", 5));
+        resultList = parse(config().set("schema", schema.build()).set("stop_on_invalid_record", false));
+
+        assertEquals(1, resultList.size());
+        assertEquals(1L, resultList.get(0).get("id"));
+    }
+
+    @Test
+    public void testMaxValueSizeWithSurrogatePairs() throws FileNotFoundException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("oversized_01.xml").getPath();
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "@name", "type", "string", "max_value_size", 5, "on_oversized_value", "truncate"));
+        schema.add(ImmutableMap.of("name", "text", "type", "string", "max_value_size", 5, "on_oversized_value", "truncate"));
+        ConfigSource config = config().set("root", "root/item").set("schema", schema.build());
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine), path);
+
+            // a value is not cut in the middle of a surrogate pair, nor appended to after it is cut.
+            assertEquals(3, resultList.size());
+            assertEquals("abcd", resultList.get(0).get("@name"));
+            assertEquals("abcd", resultList.get(0).get("text"));
+            assertEquals("abc😀", resultList.get(1).get("@name"));
+            assertEquals("abcd", resultList.get(1).get("text"));
+            assertEquals("abcde", resultList.get(2).get("@name"));
+            assertEquals("ab😀c", resultList.get(2).get("text"));
+        }
+    }
+
+    @Test
+    public void testFilter()throws FileNotFoundException {
+        ImmutableList.Builder<Object> filter = new ImmutableList.Builder<>();
+        filter.add(ImmutableMap.of("column", "id", "operator", "gt", "value", "1"));
+        List<Map<String,Object>> resultList = parse(config().set("filter", filter.build()));
+
+        assertEquals(1, resultList.size());
+        assertEquals(5L, resultList.get(0).get("id"));
+        assertEquals("アンパサンド", resultList.get(0).get("title"));
+
+        filter = new ImmutableList.Builder<>();
+        filter.add(ImmutableMap.of("column", "revision/timestamp", "operator", "lt", "value", "2015-01-01T00:00:00Z"));
+        filter.add(ImmutableMap.of("column", "title", "operator", "ne", "value", "アンパサンド"));
+        resultList = parse(config().set("filter", filter.build()).set("parser_engine", "stax"));
+
+        assertEquals(1, resultList.size());
+        assertEquals(1L, resultList.get(0).get("id"));
+    }
+
+    @Test
+    public void testUnreachableExternalDtd() throws FileNotFoundException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("dtd_01.xml").getPath();
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            // the DOCTYPE names a DTD which cannot be loaded, but it is not loaded by default.
+            List<Map<String,Object>> resultList = parse(config().set("parser_engine", engine), path);
+
+            assertEquals(2, resultList.size());
+            assertEquals("T1", resultList.get(0).get("title"));
+            assertEquals("T2", resultList.get(1).get("title"));
+        }
+    }
+
+    @Test
+    public void testEntityExpansionLimit() throws FileNotFoundException {
+        // the limit is of the JDK's parsers, which the sax engine uses. Aalto does not expand the entities of a DTD.
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("entities_01.xml").getPath();
+        List<Map<String,Object>> resultList = parse(config(), path);
+        assertEquals(3, resultList.size());
+        assertEquals("xxxxxxxxxx", resultList.get(1).get("title"));
+
+        // <title>&b;&b;</title> expands 12 entities.
+        ConfigSource config = config().set("entity_expansion_limit", 5);
+        try {
+            parse(config.deepCopy(), path);
+            fail("entity_expansion_limit is not applied");
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SAXParseException);
+        }
+
+        resultList = parse(config.deepCopy().set("stop_on_invalid_record", false), path);
+        assertEquals(2, resultList.size());
+        assertEquals(1L, resultList.get(0).get("id"));
+        assertEquals(3L, resultList.get(1).get("id"));
+    }
+
+    @Test
+    public void testSkipInvalidRecords() throws FileNotFoundException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("invalid_01.xml").getPath();
+        ConfigSource config = config().set("stop_on_invalid_record", false);
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine), path);
+
+            // #5 has an invalid id, #9 a mismatched end tag and #13 no end tags.
+            assertEquals(17, resultList.size());
+            assertEquals(4L, resultList.get(3).get("id"));
+            assertEquals(6L, resultList.get(4).get("id"));
+            assertEquals(10L, resultList.get(7).get("id"));
+            assertEquals(14L, resultList.get(10).get("id"));
+            assertEquals("T20", resultList.get(16).get("title"));
+        }
+
+        List<Map<String,Object>> resultList = parse(config.deepCopy().set("on_invalid_value", "set_null"), path);
+        assertEquals(18, resultList.size());
+        assertEquals(null, resultList.get(4).get("id"));
+        assertEquals("T5", resultList.get(4).get("title"));
+    }
+
+    @Test
+    public void testSkipInvalidRecordsWithNestedRoots() throws FileNotFoundException {
+        // #1 and #3 contain page elements. #3 and #5 have no end tags of title.
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("nested_01.xml").getPath();
+        ImmutableList.Builder<Object> schema = new ImmutableList.Builder<>();
+        schema.add(ImmutableMap.of("name", "id", "type", "long"));
+        schema.add(ImmutableMap.of("name", "page/id", "type", "long"));
+        ConfigSource config = config().set("schema", schema.build()).set("stop_on_invalid_record", false);
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            for (boolean parallelSplit : new boolean[] {false, true}) {
+                List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine).set("parallel_split", parallelSplit)
+                        .set("parallel_split_chunk_size", 1), path);
+
+                assertEquals(4, resultList.size());
+                assertEquals(1L, resultList.get(0).get("id"));
+                assertEquals(9L, resultList.get(0).get("page/id"));
+                assertEquals(2L, resultList.get(1).get("id"));
+                assertEquals(4L, resultList.get(2).get("id"));
+                assertEquals(6L, resultList.get(3).get("id"));
+                assertEquals(null, resultList.get(3).get("page/id"));
+            }
+        }
+    }
+
+    @Test
+    public void testResumeFrom() throws IOException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("invalid_01.xml").getPath();
+        String xml = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII);
+        // the offset of the 10th page. #13 has no end tags.
+        int offset = -1;
+        for (int i = 0; i < 10; i++) {
+            offset = xml.indexOf("<page>", offset + 1);
+        }
+        ConfigSource config = config().set("stop_on_invalid_record", false).set("resume_from", offset).set("checkpoint", true);
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine), path);
+            assertEquals(10, resultList.size());
+            assertEquals(10L, resultList.get(0).get("id"));
+            assertEquals("T20", resultList.get(9).get("title"));
+        }
+
+        List<Map<String,Object>> resultList = parse(config.deepCopy().set("parallel_split", true)
+                .set("parallel_split_chunk_size", 256), path);
+        assertEquals(10, resultList.size());
+        assertEquals(10L, resultList.get(0).get("id"));
+    }
+
+    @Test
+    public void testCheckpointFileHead() throws IOException {
+        // the checkpoint identifies the file by the checksum of its head, which is read in small pieces here.
+        StringBuilder sb = new StringBuilder("<mediawiki>");
+        for (int i = 0; i < 300; i++) {
+            sb.append("<page><id>").append(i).append("</id></page>");
+        }
+        byte[] xml = sb.append("</mediawiki>").toString().getBytes(StandardCharsets.US_ASCII);
+        RecordSplitter splitter = new RecordSplitter(new FilterInputStream(new ByteArrayInputStream(xml)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 100));
+            }
+        }, "mediawiki/page", 1);
+        while (splitter.next() != null) {
+        }
+        CRC32 head = new CRC32();
+        head.update(xml, 0, 4096);
+        assertEquals(4096, splitter.getHeadLength());
+        assertEquals(head.getValue(), splitter.getHeadChecksum());
+    }
+
+    @Test
+    public void testCheckpointWithMultipleFiles() throws IOException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("invalid_01.xml").getPath();
+        String xml = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII);
+        int offset = xml.indexOf("<page><id>6</id>");
+        ConfigSource config = config().set("checkpoint", true);
+        // #5 of the second file has an invalid id.
+        try {
+            parse(config.deepCopy(), PATH_PREFIX, path);
+            fail();
+        }
+        catch (NumberFormatException e) {
+        }
+
+        // the first file and the records before the offset of the second file are not parsed again.
+        config.set("resume_from_file", 1).set("resume_from", offset).set("stop_on_invalid_record", false);
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            List<Map<String,Object>> resultList = parse(config.deepCopy().set("parser_engine", engine), PATH_PREFIX, path);
+            assertEquals(13, resultList.size());
+            assertEquals(6L, resultList.get(0).get("id"));
+            assertEquals("T20", resultList.get(12).get("title"));
+        }
+
+        List<Map<String,Object>> resultList = parse(config.deepCopy().set("parallel_split", true)
+                .set("parallel_split_chunk_size", 256), PATH_PREFIX, path, path);
+        assertEquals(13 + 17, resultList.size());
+        assertEquals(6L, resultList.get(0).get("id"));
+        assertEquals(1L, resultList.get(13).get("id"));
+    }
+
+    @Test
+    public void testMultipleFiles() throws FileNotFoundException {
+        String path = Xml2ParserPlugin.class.getClassLoader().getResource("dtd_01.xml").getPath();
+        for (String engine : new String[] {"sax", "stax", "aalto_async"}) {
+            // the parser of an engine is reused for each file, and the records of the files share pages.
+            ConfigSource config = config().set("parser_engine", engine);
+            List<Map<String,Object>> resultList = parse(config.deepCopy(), PATH_PREFIX, path, PATH_PREFIX);
+            assertMultipleFileRecords(resultList);
+            assertEquals(1, pageCount);
+
+            resultList = parse(config.deepCopy().set("page_flush_records", 4), PATH_PREFIX, path, PATH_PREFIX);
+            assertMultipleFileRecords(resultList);
+            assertEquals(2, pageCount);
+
+            resultList = parse(config.deepCopy().set("page_flush_records", 1), PATH_PREFIX, path, PATH_PREFIX);
+            assertMultipleFileRecords(resultList);
+            assertEquals(6, pageCount);
+
+            resultList = parse(config.deepCopy().set("page_flush_interval", 1), PATH_PREFIX, path, PATH_PREFIX);
+            assertMultipleFileRecords(resultList);
+        }
+    }
+
+    private void assertMultipleFileRecords(List<Map<String,Object>> resultList) {
+        assertEquals(6, resultList.size());
+        assertSampleRecords(resultList.subList(0, 2));
+        assertEquals("T1", resultList.get(2).get("title"));
+        assertEquals("T2", resultList.get(3).get("title"));
+        assertSampleRecords(resultList.subList(4, 6));
+    }
+
+    private void assertSampleRecords(List<Map<String,Object>> resultList) {
+        assertEquals(2,resultList.size());
+        
+        Map<String, Object> record0 = resultList.get(0);
+        assertEquals("Wikipedia:アップロードログ 2004年4月",record0.get("title"));
+        assertEquals(1L,record0.get("id"));
+        assertEquals("なんか書く",record0.get("revision/text"));
+        assertEquals(1083336360L * 1000L, ((Timestamp)record0.get("revision/timestamp")).toEpochMilli());
+        
+        Map<String, Object> record1 = resultList.get(1);
+        assertEquals("アンパサンド",record1.get("title"));
+        assertEquals(5L,record1.get("id"));
+        assertEquals("アンパサンドとは\n「…と…」を意味する記号である。",record1.get("revision/text"));
+        assertEquals(1449883580L * 1000L, ((Timestamp)record1.get("revision/timestamp")).toEpochMilli());   
+    }
+
+    private List<Map<String,Object>> parse(ConfigSource config) throws FileNotFoundException {
+        return parse(config, PATH_PREFIX);
+    }
+
+    private List<Map<String,Object>> parse(ConfigSource config, String... paths) throws FileNotFoundException {
         final Schema schema = config.loadConfig(Xml2ParserPlugin.PluginTask.class).getSchema().toSchema();
         PluginTask task = config.loadConfig(PluginTask.class);
         plugin.transaction(config, new ParserPlugin.Control() {
@@ -98,15 +589,18 @@ public class TestXml2ParserPlugin {
         
         // the list contains result.
         final List<Map<String,Object>> resultList = new LinkedList<Map<String,Object>>();
+        pageCount = 0;
         
         plugin.run(task.dump(), schema,
-                new InputStreamFileInput(Exec.getBufferAllocator(), new FileInputStream(new File(PATH_PREFIX))),
+                new CheckedFileInput(new InputStreamFileInput(Exec.getBufferAllocator(),
+                        new InputStreamFileInput.IteratorProvider(inputStreams(paths)))),
                 new TransactionalPageOutput() {
 
                     private final PageReader reader = new PageReader(schema);
 
                     @Override
                     public void add(Page page) {
+                        pageCount++;
                         reader.setPage(page);
                         
                         while (reader.nextRecord()) {
@@ -164,7 +658,7 @@ public class TestXml2ParserPlugin {
                                             record.put(column.getName(), null);
                                             return;
                                         }
-                                        record.put(column.getName(), reader.getString(column));
+                                        record.put(column.getName(), reader.getJson(column));
                                     }
                                 });
                             }
@@ -189,25 +683,45 @@ public class TestXml2ParserPlugin {
                         return Exec.newTaskReport();
                     }
                 });
-        
-        //assert...
-        for (Map<String,Object> r : resultList) {
-            System.out.println(r);
+        return resultList;
+    }
+
+    /**
+     * FileInput which fails if it is used after close(), as InputStreamFileInput loses the rest of the files.
+     */
+    private static class CheckedFileInput implements FileInput {
+        private final FileInput input;
+        private boolean closed = false;
+
+        CheckedFileInput(FileInput input) {
+            this.input = input;
         }
-        
-        assertEquals(2,resultList.size());
-        
-        Map<String, Object> record0 = resultList.get(0);
-        assertEquals("Wikipedia:アップロードログ 2004年4月",record0.get("title"));
-        assertEquals(1L,record0.get("id"));
-        assertEquals("なんか書く",record0.get("revision/text"));
-        assertEquals(1083336360L * 1000L, ((Timestamp)record0.get("revision/timestamp")).toEpochMilli());
-        
-        Map<String, Object> record1 = resultList.get(1);
-        assertEquals("アンパサンド",record1.get("title"));
-        assertEquals(5L,record1.get("id"));
-        assertEquals("アンパサンドとは\n「…と…」を意味する記号である。",record1.get("revision/text"));
-        assertEquals(1449883580L * 1000L, ((Timestamp)record1.get("revision/timestamp")).toEpochMilli());   
+
+        @Override
+        public boolean nextFile() {
+            assertFalse("nextFile() after close()", closed);
+            return input.nextFile();
+        }
+
+        @Override
+        public Buffer poll() {
+            assertFalse("poll() after close()", closed);
+            return input.poll();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            input.close();
+        }
+    }
+
+    private List<InputStream> inputStreams(String... paths) throws FileNotFoundException {
+        List<InputStream> streams = new ArrayList<InputStream>();
+        for (String path : paths) {
+            streams.add(new FileInputStream(new File(path)));
+        }
+        return streams;
     }
 
     private ConfigSource config() {